@@ -1,103 +1,653 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import tester.*;
 
+// To represent the operations shared by every double-ended queue
+interface IDeque<T> {
+  // how many items are in this deque
+  int size();
+
+  // adds the given item at the head of this deque
+  void addAtHead(T t);
+
+  // adds the given item at the tail of this deque
+  void addAtTail(T t);
+
+  // removes and produces the item at the head of this deque
+  T removeFromHead();
+
+  // removes and produces the item at the tail of this deque
+  T removeFromTail();
+
+  // produces the first item that satisfies the given predicate, or null if none does
+  T findData(IPred<T> pred);
+}
+
 // To represent a two directional list
-class Deque<T> {
+class Deque<T> implements IDeque<T>, Iterable<T> {
+  static final int PARALLEL_MIN = 1024;
+  static final int BLOCK = 256;
   Sentinel<T> header;
+  NodePool<T> pool;
+  HashIndex<T> index;
 
   // Initial constructor
   Deque() {
     this.header = new Sentinel<T>();
+    this.pool = null;
+    this.index = null;
   }
 
   // Convenience Constructor, takes a specific sentinel
   Deque(Sentinel<T> header) {
     this.header = header;
+    this.pool = null;
+    this.index = null;
+  }
+
+  // Convenience Constructor: removed nodes are kept, up to the given number,
+  // and reused by later adds. A node handle must not be used once its node
+  // has been removed, since it may come back holding other data.
+  Deque(int poolLimit) {
+    this.header = new Sentinel<T>();
+    this.pool = new NodePool<T>(poolLimit);
+    this.index = null;
   }
 
   /*TEMPLATE:
    * Fields:
    *  ... this.header ...     -- Sentinel<T>
+   *  ... this.pool ...       -- NodePool<T>, or null when nodes are not reused
+   *  ... this.index ...      -- HashIndex<T>, or null when find always walks
    *  
    * Methods:
    *  ... this.size() ...                 -- int
    *  ... this.addAtHead(T) ...           -- void
    *  ... this.addAtTail(T) ...           -- void
+   *  ... this.add(T, int) ...            -- void
    *  ... this.find(IPred<T>) ...         -- ANode<T>
+   *  ... this.findData(IPred<T>) ...     -- T
    *  ... this.removeFromHead() ...       -- T
    *  ... this.removeFromTail() ...       -- T
    *  ... this.removeNode(ANode<T>) ...   -- void
+   *  ... this.peekHead() ...             -- T
+   *  ... this.peekTail() ...             -- T
+   *  ... this.appendAll(Deque<T>) ...    -- void
+   *  ... this.splitAt(ANode<T>) ...      -- Deque<T>
+   *  ... this.addAllAtTail(Iterable<T>) ...   -- void
+   *  ... this.enableIndex() ...          -- void
+   *  ... this.findEqual(T) ...           -- ANode<T>
+   *  ... this.iterator() ...             -- Iterator<T>
+   *  ... this.spliterator() ...          -- Spliterator<T>
+   *  ... this.stream() ...               -- Stream<T>
+   *  ... this.findAll(IPred<T>) ...      -- Deque<T>
+   *  ... this.count(IPred<T>) ...        -- long
+   *  ... this.filter(IPred<T>) ...       -- Deque<T>
+   *  ... this.findInBlocks(BatchPred<T>) ...   -- ANode<T>
+   *  ... this.cursor() ...               -- DequeCursor<T>
+   *  ... this.cursorAt(ANode<T>) ...     -- DequeCursor<T>
+   *  ... this.moveToHead(ANode<T>) ...   -- void
+   *  ... this.moveToTail(ANode<T>) ...   -- void
+   *  ... this.relink(ANode<T>, ANode<T>, ANode<T>) ...   -- void
+   *  ... this.insert(T, ANode<T>, ANode<T>) ...   -- Node<T>
+   *  ... this.discard(ANode<T>) ...      -- T
    *  
    * Methods for Fields:
-   *  ... this.header.next.sizeHelp() ...       -- int
-   *  ... this.header.add() ...                 -- void
+   *  ... this.header.count ...                 -- int
    *  ... this.header.next.findHelper() ...     -- ANode<T>
-   *  ... this.header.next.remove() ...         -- T
+   *  ... this.header.next.unlink() ...         -- T
+   *  ... this.pool.take(T, ANode<T>, ANode<T>) ...   -- Node<T>
    * 
    */
 
   // how many nodes are in this Deque<T>
   // method template: same as class template
-  int size() {
-    return this.header.next.sizeHelp();
+  public int size() {
+    return this.header.count;
   }
 
   // adds a node with the given T value at the head of the deque
   // method template: same as class template
-  void addAtHead(T t) {
-    this.header.add(t, 0);
+  public void addAtHead(T t) {
+    this.insert(t, this.header.next, this.header);
   }
 
   // adds a node with the given T value at the tail of the deque
   // method template: same as class template
-  void addAtTail(T t) {
-    this.header.add(t, this.size());
+  public void addAtTail(T t) {
+    this.insert(t, this.header, this.header.prev);
+  }
+
+  // adds a node with the given T value so that it ends up at the given index;
+  // unlike header.add, this keeps the hash index up to date
+  // method template: same as class template
+  void add(T t, int index) {
+    if (index < 0 || index > this.size()) {
+      throw new IndexOutOfBoundsException("Cannot add at position " + index);
+    }
+    ANode<T> prev = this.header;
+    for (int i = 0; i < index; i += 1) {
+      prev = prev.next;
+    }
+    this.insert(t, prev.next, prev);
   }
 
-  // produces the first node that satisfies the given predicate
+  // produces the first node that satisfies the given predicate; an
+  // EqualsPred is answered from the hash index when there is one, and a
+  // BatchPred is given the items a block at a time
   /* FIELDS OF PARAMETERS - none
    * 
    * METHODS OF PARAMETERS - 
    * pred.apply(T) - boolean
    */
+  @SuppressWarnings("unchecked")
   ANode<T> find(IPred<T> pred) {
+    if (this.index != null && pred instanceof EqualsPred) {
+      return this.findEqual(((EqualsPred<T>) pred).value);
+    }
+    if (pred instanceof BatchPred) {
+      return this.findInBlocks((BatchPred<T>) pred);
+    }
     return this.header.next.findHelper(pred);
   }
 
+  // produces the data of the first node that satisfies the given predicate,
+  // or null if no node does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    return this.find(pred).value();
+  }
+
   // removes a node with the given T value at the head of the deque
   // method template: same as class template
-  T removeFromHead() {
+  public T removeFromHead() {
     if (this.size() == 0) {
       throw new RuntimeException("Cannot remove from an empty deque");
     }
     else {
-      return this.header.next.remove(this.header.next);
+      return this.discard(this.header.next);
     }
   }
 
   // removes a node with the given T value at the tail of the deque
   // method template: same as class template
-  T removeFromTail() {
+  public T removeFromTail() {
     if (this.size() == 0) {
       throw new RuntimeException("Cannot remove from an empty deque");
     }
     else {
-      return this.header.next.remove(this.header.prev);
+      return this.discard(this.header.prev);
     }
   }
 
-  // removes the given node from this deque
+  // removes the given node from this deque, if it belongs to this deque; the
+  // node's owner and links make this O(1), with no walk from the head
   /* FIELDS OF PARAMETERS - 
    * node.next - ANode<T>
    * node.prev - ANode<T>
    * 
    * METHODS OF PARAMETERS - 
-   * node.sizeHelp() ...            -- int
-   * node.add(T, int) ...           -- void
-   * node.remove(ANode<T>) ...      -- T
-   * node.findHelper(IPred<T>) ...  -- ANode<T>
+   * node.sentinel() ...            -- Sentinel<T>
+   * node.unlink() ...              -- T
    */
   void removeNode(ANode<T> node) {
-    this.header.next.remove(node);
+    if (node.sentinel() == this.header) {
+      this.discard(node);
+    }
+  }
+
+  // produces the item at the head of the deque without removing it
+  // method template: same as class template
+  T peekHead() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot look into an empty deque");
+    }
+    return this.header.next.value();
+  }
+
+  // produces the item at the tail of the deque without removing it
+  // method template: same as class template
+  T peekTail() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot look into an empty deque");
+    }
+    return this.header.prev.value();
+  }
+
+  // starts keeping a hash index from values to nodes, so that find with an
+  // EqualsPred takes O(1). The index follows every change made through this
+  // deque's methods and its cursors; nodes linked or unlinked directly through
+  // ANode.add or ANode.remove are only noticed if they change the size, so
+  // call this again after doing that.
+  // method template: same as class template
+  void enableIndex() {
+    this.index = new HashIndex<T>();
+    this.index.rebuild(this.header);
+  }
+
+  // produces the first node whose data equals the given value, or the
+  // sentinel, using the hash index
+  // method template: same as class template
+  ANode<T> findEqual(T value) {
+    if (this.index.stale || this.index.size() != this.size()) {
+      this.index.rebuild(this.header);
+    }
+    ANode<T> node = this.index.first(value);
+    if (node == null) {
+      return this.header;
+    }
+    return node;
+  }
+
+  // moves every node of the given deque onto the tail of this one, leaving the
+  // given deque empty with a fresh sentinel. The given deque's old sentinel
+  // forwards to this one, so its nodes find their new deque without a walk.
+  /* FIELDS OF PARAMETERS - 
+   * other.header - Sentinel<T>
+   * 
+   * METHODS OF PARAMETERS - 
+   * other.size() ...            -- int
+   */
+  void appendAll(Deque<T> other) {
+    if (other.header.sentinel() == this.header) {
+      throw new IllegalArgumentException("Cannot append a deque to itself");
+    }
+    if (other.size() > 0) {
+      Sentinel<T> old = other.header;
+      ANode<T> first = old.next;
+      ANode<T> last = old.prev;
+      this.header.prev.next = first;
+      first.prev = this.header.prev;
+      last.next = this.header;
+      this.header.prev = last;
+      this.header.count += old.count;
+      old.next = old;
+      old.prev = old;
+      old.count = 0;
+      old.forward = this.header;
+      other.header = new Sentinel<T>();
+      if (this.index != null) {
+        this.index.stale = true;
+      }
+      if (other.index != null) {
+        other.index = new HashIndex<T>();
+      }
+    }
+  }
+
+  // removes the given node and every node after it from this deque, and
+  // produces a new deque of them. Relinking takes constant time; the moved
+  // nodes are walked once to count them and hand them to the new deque.
+  /* FIELDS OF PARAMETERS - 
+   * node.prev - ANode<T>
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.sentinel() ...            -- Sentinel<T>
+   * node.adopt(Sentinel<T>) ...    -- void
+   */
+  Deque<T> splitAt(ANode<T> node) {
+    if (node == this.header || node.sentinel() != this.header) {
+      throw new IllegalArgumentException("Can only split at a node of this deque");
+    }
+    Deque<T> rest = new Deque<T>();
+    if (this.pool != null) {
+      rest.pool = new NodePool<T>(this.pool.limit);
+    }
+    int moved = 0;
+    for (ANode<T> current = node; current != this.header; current = current.next) {
+      current.adopt(rest.header);
+      moved += 1;
+    }
+    ANode<T> before = node.prev;
+    ANode<T> last = this.header.prev;
+    before.next = this.header;
+    this.header.prev = before;
+    this.header.count -= moved;
+    node.prev = rest.header;
+    last.next = rest.header;
+    rest.header.next = node;
+    rest.header.prev = last;
+    rest.header.count = moved;
+    if (this.index != null) {
+      this.index.stale = true;
+    }
+    return rest;
+  }
+
+  // adds the given items at the tail, in order, by building them into a chain
+  // first and linking the chain onto the tail once
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * items.iterator() ...            -- Iterator<T>
+   */
+  void addAllAtTail(Iterable<T> items) {
+    ANode<T> first = null;
+    ANode<T> last = null;
+    int added = 0;
+    for (T t : items) {
+      Node<T> node = new Node<T>(t);
+      node.owner = this.header;
+      if (last == null) {
+        first = node;
+      }
+      else {
+        last.next = node;
+        node.prev = last;
+      }
+      last = node;
+      added += 1;
+      if (this.index != null) {
+        this.index.addLast(node);
+      }
+    }
+    if (added > 0) {
+      first.prev = this.header.prev;
+      this.header.prev.next = first;
+      last.next = this.header;
+      this.header.prev = last;
+      this.header.count += added;
+    }
+  }
+
+  // returns the iterator of this deque, from head to tail
+  public Iterator<T> iterator() {
+    return new DequeIterator<T>(this.header);
+  }
+
+  // returns a spliterator over this deque that can split itself for
+  // parallel streams; the deque must not change while it is in use
+  public Spliterator<T> spliterator() {
+    return new DequeSpliterator<T>(this.header.next, this.header, this.size());
+  }
+
+  // returns a sequential stream of the items of this deque, from head to tail
+  // method template: same as class template
+  Stream<T> stream() {
+    return StreamSupport.stream(this.spliterator(), false);
+  }
+
+  // produces a new deque of every item that satisfies the given predicate, in
+  // order; large deques are tested in parallel
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  Deque<T> findAll(IPred<T> pred) {
+    Stream<T> items = this.stream();
+    if (this.size() >= PARALLEL_MIN) {
+      items = items.parallel();
+    }
+    Deque<T> matches = new Deque<T>();
+    matches.addAllAtTail(items.filter(pred::apply).collect(Collectors.toList()));
+    return matches;
+  }
+
+  // counts the items that satisfy the given predicate; large deques are
+  // tested in parallel
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  long count(IPred<T> pred) {
+    Stream<T> items = this.stream();
+    if (this.size() >= PARALLEL_MIN) {
+      items = items.parallel();
+    }
+    return items.filter(pred::apply).count();
+  }
+
+  // produces a new deque of every item that satisfies the given predicate, in
+  // order; a BatchPred is given the items a block at a time
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  @SuppressWarnings("unchecked")
+  Deque<T> filter(IPred<T> pred) {
+    Deque<T> matches = new Deque<T>();
+    if (!(pred instanceof BatchPred)) {
+      for (ANode<T> node = this.header.next; node != this.header; node = node.next) {
+        T t = node.value();
+        if (pred.apply(t)) {
+          matches.addAtTail(t);
+        }
+      }
+      return matches;
+    }
+    BatchPred<T> batch = (BatchPred<T>) pred;
+    T[] chunk = (T[]) new Object[BLOCK];
+    ANode<T> node = this.header.next;
+    while (node != this.header) {
+      int length = 0;
+      for (; length < BLOCK && node != this.header; length += 1) {
+        chunk[length] = node.value();
+        node = node.next;
+      }
+      long[] hits = batch.matches(chunk, length);
+      for (int w = 0; w < (length + 63) / 64; w += 1) {
+        for (long bits = hits[w]; bits != 0; bits &= bits - 1) {
+          matches.addAtTail(chunk[w * 64 + Long.numberOfTrailingZeros(bits)]);
+        }
+      }
+    }
+    return matches;
+  }
+
+  // produces the first node whose data satisfies the given BatchPred, or the
+  // sentinel, testing the items a block at a time
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.matches(T[], int) - long[]
+   */
+  @SuppressWarnings("unchecked")
+  ANode<T> findInBlocks(BatchPred<T> pred) {
+    T[] chunk = (T[]) new Object[BLOCK];
+    ANode<T> node = this.header.next;
+    while (node != this.header) {
+      ANode<T> start = node;
+      int length = 0;
+      for (; length < BLOCK && node != this.header; length += 1) {
+        chunk[length] = node.value();
+        node = node.next;
+      }
+      long[] hits = pred.matches(chunk, length);
+      for (int w = 0; w < (length + 63) / 64; w += 1) {
+        if (hits[w] != 0) {
+          for (int i = w * 64 + Long.numberOfTrailingZeros(hits[w]); i > 0; i -= 1) {
+            start = start.next;
+          }
+          return start;
+        }
+      }
+    }
+    return this.header;
+  }
+
+
+  // produces a cursor at the head of this deque
+  // method template: same as class template
+  DequeCursor<T> cursor() {
+    return new DequeCursor<T>(this, this.header.next);
+  }
+
+  // produces a cursor at the given node of this deque
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.sentinel() ...            -- Sentinel<T>
+   */
+  DequeCursor<T> cursorAt(ANode<T> node) {
+    if (node.sentinel() != this.header) {
+      throw new IllegalArgumentException("Can only put a cursor on a node of this deque");
+    }
+    return new DequeCursor<T>(this, node);
+  }
+
+  // moves the given node of this deque to its head, keeping the same node, so
+  // that a least-recently-used list can promote an entry in O(1)
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.sentinel() ...            -- Sentinel<T>
+   */
+  void moveToHead(ANode<T> node) {
+    this.relink(node, this.header.next, this.header);
+    if (this.index != null) {
+      this.index.remove(node);
+      this.index.addFirst(node);
+    }
+  }
+
+  // moves the given node of this deque to its tail, keeping the same node
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.sentinel() ...            -- Sentinel<T>
+   */
+  void moveToTail(ANode<T> node) {
+    this.relink(node, this.header, this.header.prev);
+    if (this.index != null) {
+      this.index.remove(node);
+      this.index.addLast(node);
+    }
+  }
+
+  // takes the given node of this deque out from between its neighbours and
+  // puts it between the given ones, without changing the count
+  /* FIELDS OF PARAMETERS - 
+   * node.next - ANode<T>
+   * node.prev - ANode<T>
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.sentinel() ...            -- Sentinel<T>
+   */
+  void relink(ANode<T> node, ANode<T> next, ANode<T> prev) {
+    if (node == this.header || node.sentinel() != this.header) {
+      throw new IllegalArgumentException("Can only move a node of this deque");
+    }
+    if (node == next || node == prev) {
+      return;
+    }
+    node.prev.next = node.next;
+    node.next.prev = node.prev;
+    node.next = next;
+    node.prev = prev;
+    prev.next = node;
+    next.prev = node;
+  }
+
+  // links a node with the given T value between the given nodes, reusing a
+  // pooled node if there is one
+  /* FIELDS OF PARAMETERS - 
+   * next.prev, prev.next - ANode<T>
+   * 
+   * METHODS OF PARAMETERS - none
+   */
+  Node<T> insert(T t, ANode<T> next, ANode<T> prev) {
+    Node<T> node;
+    if (this.pool == null) {
+      node = new Node<T>(t, next, prev);
+    }
+    else {
+      node = this.pool.take(t, next, prev);
+    }
+    if (this.index != null) {
+      if (prev == this.header) {
+        this.index.addFirst(node);
+      }
+      else if (next == this.header) {
+        this.index.addLast(node);
+      }
+      else if (!this.index.stale) {
+        this.index.addBetween(node, this.header);
+      }
+    }
+    return node;
+  }
+
+  // unlinks the given node of this deque, hands it to the pool if there is one,
+  // and produces its data
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.unlink() ...              -- T
+   * node.recycle(NodePool<T>) ...  -- void
+   */
+  T discard(ANode<T> node) {
+    if (this.index != null) {
+      this.index.remove(node);
+    }
+    T t = node.unlink();
+    if (this.pool != null) {
+      node.recycle(this.pool);
+    }
+    return t;
   }
 }
 
@@ -113,59 +663,111 @@ abstract class ANode<T> {
    *  ... this.prev ...     -- ANode<T>
    *  
    * Methods:
-   *  ... this.sizeHelp() ...            -- int
    *  ... this.add(T, int) ...           -- void
    *  ... this.remove(ANode<T>) ...      -- T
    *  ... this.findHelper(IPred<T>) ...  -- ANode<T>
+   *  ... this.sentinel() ...            -- Sentinel<T>
+   *  ... this.satisfies(IPred<T>) ...   -- boolean
+   *  ... this.unlink() ...              -- T
+   *  ... this.value() ...               -- T
+   *  ... this.recycle(NodePool<T>) ...  -- void
+   *  ... this.adopt(Sentinel<T>) ...    -- void
+   *  ... this.tower() ...               -- SkipTower<T>
    *  
    * Methods for Fields:
-   *  ... this.next.sizeHelp() ...       -- int
-   *  ... this.next.add() ...                 -- void
+   *  ... this.next.satisfies(IPred<T>) ...   -- boolean
    *   
    */
 
-  // helper for size, adds one for each node until the sentinel
-  // method template: same as class template
-  int sizeHelp() {
-    return 1 + this.next.sizeHelp();
-  }
-
   // adds a node with the given t value at the given index
   // method template: same as class template
   void add(T t, int index) {
-    if (index == 0) {
-      this.next = new Node<T>(t, this.next, this);
+    ANode<T> current = this;
+    for (int i = 0; i < index; i += 1) {
+      current = current.next;
     }
-    else {
-      this.next.add(t, index - 1);
+    new Node<T>(t, current.next, current);
+  }
+
+  // removes the given node, if it comes before the sentinel
+  /* FIELDS OF PARAMETERS - 
+   * node.next - ANode<T>
+   * node.prev - ANode<T>
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.unlink() ...              -- T
+   */
+  T remove(ANode<T> node) {
+    ANode<T> current = this;
+    while (current != node && current != current.sentinel()) {
+      current = current.next;
+    }
+    return current.unlink();
+  }
+
+  // helper method for find method, walks until a match or the sentinel
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  ANode<T> findHelper(IPred<T> pred) {
+    ANode<T> current = this;
+    while (!current.satisfies(pred)) {
+      current = current.next;
     }
+    return current;
   }
 
-  // removes the given node 
-  abstract T remove(ANode<T> node);
+  // the sentinel of the deque this node belongs to
+  abstract Sentinel<T> sentinel();
 
-  // helper method for find method
+  // does this node stop a search with the given predicate?
   /* FIELDS OF PARAMETERS - none
    * 
    * METHODS OF PARAMETERS - 
    * pred.apply(T) - boolean
    */
-  abstract ANode<T> findHelper(IPred<T> pred);
+  abstract boolean satisfies(IPred<T> pred);
+
+  // takes this node out of its deque and produces its data
+  abstract T unlink();
+
+  // the data held by this node
+  abstract T value();
+
+  // hands this unlinked node to the given pool for reuse
+  abstract void recycle(NodePool<T> pool);
+
+  // makes this node belong to the deque with the given sentinel
+  abstract void adopt(Sentinel<T> sentinel);
+
+  // the skip-list tower above this node in an IndexedDeque, or null if it has none
+  SkipTower<T> tower() {
+    return null;
+  }
 
 }
 
 // To represent a dataless node of a deque
 class Sentinel<T> extends ANode<T> {
+  int count;
+  Sentinel<T> forward;
 
   // Constructor
   Sentinel() {
     this.next = this;
     this.prev = this;
+    this.count = 0;
+    this.forward = null;
   }
 
   /*TEMPLATE:
    * Fields:
    *  -- Same as ANode<T> --
+   *  ... this.count ...     -- int
+   *  ... this.forward ...   -- Sentinel<T>, the sentinel whose deque took over
+   *                            this one's nodes, or null while this one is in use
    *  
    * Methods:
    *  -- Same as ANode<T> --
@@ -175,47 +777,69 @@ class Sentinel<T> extends ANode<T> {
    * 
    */
 
-  // overrides sizeHelp in ANode class to terminate
+  // the sentinel now heading this one's nodes: itself, unless its nodes were
+  // appended to another deque. Shortens the forward chain on the way.
   // method template: same as class template
-  int sizeHelp() {
-    return 0;
+  Sentinel<T> sentinel() {
+    Sentinel<T> root = this;
+    while (root.forward != null) {
+      root = root.forward;
+    }
+    Sentinel<T> current = this;
+    while (current != root) {
+      Sentinel<T> after = current.forward;
+      current.forward = root;
+      current = after;
+    }
+    return root;
   }
 
-  // helper method for find method
+  // overrides satisfies to terminate every search
   /* FIELDS OF PARAMETERS - none
    * 
    * METHODS OF PARAMETERS - 
    * pred.apply(T) - boolean
    */
-  ANode<T> findHelper(IPred<T> pred) {
-    return this;
+  boolean satisfies(IPred<T> pred) {
+    return true;
   }
 
-  // removes the given node 
-  /* FIELDS OF PARAMETERS - 
-   * node.next - ANode<T>
-   * node.prev - ANode<T>
-   * 
-   * METHODS OF PARAMETERS - 
-   * node.sizeHelp() ...            -- int
-   * node.add(T, int) ...           -- void
-   * node.remove(ANode<T>) ...      -- T
-   * node.findHelper(IPred<T>) ...  -- ANode<T>
-   */
-  T remove(ANode<T> node) {
+  // the sentinel is never removed
+  // method template: same as class template
+  T unlink() {
+    return null;
+  }
+
+  // a sentinel holds no data
+  // method template: same as class template
+  T value() {
     return null;
   }
+
+  // the sentinel is never reused
+  // method template: same as class template
+  void recycle(NodePool<T> pool) {
+    return;
+  }
+
+  // a sentinel always belongs to its own deque
+  // method template: same as class template
+  void adopt(Sentinel<T> sentinel) {
+    return;
+  }
 }
 
 // To represent a data node of a deque
 class Node<T> extends ANode<T> {
   T data;
+  Sentinel<T> owner;
 
   // Initial constructor
   Node(T data) {
     this.data = data;
     this.next = null;
     this.prev = null;
+    this.owner = null;
   }
 
   // Convenience constructor: assigns given ANodes to the next and prev
@@ -225,10 +849,7 @@ class Node<T> extends ANode<T> {
       throw new IllegalArgumentException("Cannot initialize null");
     }
     else {
-      this.next = next;
-      this.prev = prev;
-      next.prev = this;
-      prev.next = this;
+      this.link(next, prev);
     }
   }
 
@@ -236,67 +857,4768 @@ class Node<T> extends ANode<T> {
    * Fields:
    *  -- Same as ANode<T> --
    *  ... this.data ...     -- T
+   *  ... this.owner ...    -- Sentinel<T>
    *  
    * Methods:
    *  -- Same as ANode<T> --
    *  
    * Methods for Fields:
    *  -- Same as ANode<T> --
+   *  ... this.owner.count ...   -- int
    * 
    */
 
-  // helper method for find method
+  // the sentinel of the deque this node belongs to
+  // method template: same as class template
+  Sentinel<T> sentinel() {
+    if (this.owner != null) {
+      this.owner = this.owner.sentinel();
+    }
+    return this.owner;
+  }
+
+  // does this node's data satisfy the given predicate?
   /* FIELDS OF PARAMETERS - none
    * 
    * METHODS OF PARAMETERS - 
    * pred.apply(T) - boolean
    */
-  ANode<T> findHelper(IPred<T> pred) {
-    if (pred.apply(this.data)) {
-      return this;
-    }
-    else {
-      return this.next.findHelper(pred);
+  boolean satisfies(IPred<T> pred) {
+    return pred.apply(this.data);
+  }
+
+  // removes this node by joining its neighbours
+  // method template: same as class template
+  T unlink() {
+    this.prev.next = this.next;
+    this.next.prev = this.prev;
+    if (this.sentinel() != null) {
+      this.owner.count -= 1;
+      this.owner = null;
     }
+    return this.data;
+  }
+
+  // the data held by this node
+  // method template: same as class template
+  T value() {
+    return this.data;
   }
 
-  // removes the given node 
+  // links this node between the given nodes and counts it in their deque
   /* FIELDS OF PARAMETERS - 
-   * node.next - ANode<T>
-   * node.prev - ANode<T>
+   * next.prev, prev.next - ANode<T>
    * 
    * METHODS OF PARAMETERS - 
-   * node.sizeHelp() ...            -- int
-   * node.add(T, int) ...           -- void
-   * node.remove(ANode<T>) ...      -- T
-   * node.findHelper(IPred<T>) ...  -- ANode<T>
+   * prev.sentinel() ...            -- Sentinel<T>
+   * next.sentinel() ...            -- Sentinel<T>
    */
-  T remove(ANode<T> node) {
-    if (node == this) {
-      this.prev.next = this.next;
-      this.next.prev = this.prev;
-      return this.data;
+  void link(ANode<T> next, ANode<T> prev) {
+    this.next = next;
+    this.prev = prev;
+    next.prev = this;
+    prev.next = this;
+    this.owner = prev.sentinel();
+    if (this.owner == null) {
+      this.owner = next.sentinel();
     }
-    else {
-      return this.next.remove(node);
-
+    if (this.owner != null) {
+      this.owner.count += 1;
     }
   }
 
+  // drops this node's data and hands the node to the given pool
+  // method template: same as class template
+  void recycle(NodePool<T> pool) {
+    this.data = null;
+    pool.give(this);
+  }
+
+  // makes this node belong to the deque with the given sentinel
+  // method template: same as class template
+  void adopt(Sentinel<T> sentinel) {
+    this.owner = sentinel;
+  }
+}
 
+// An iterator for Deques, from head to tail
+class DequeIterator<T> implements Iterator<T> {
+  ANode<T> current;
+  Sentinel<T> header;
 
+  // Constructor
+  DequeIterator(Sentinel<T> header) {
+    this.current = header.next;
+    this.header = header;
+  }
 
-}
+  // Does the Deque have at least one item remaining?
+  public boolean hasNext() {
+    return this.current != this.header;
+  }
 
-// Represents a boolean-valued question over values of type T
-interface IPred<T> {
-  boolean apply(T t);
+  // returns the next item in the Deque
+  // EFFECT: moves to the next node so the next call of
+  // next() returns the next item in line
+  public T next() {
+    if (!this.hasNext()) {
+      throw new NoSuchElementException("No more items in the deque");
+    }
+    T answer = this.current.value();
+    this.current = this.current.next;
+    return answer;
+  }
 }
 
-// predicate function object that determines if a string length is 4
-class IsFour implements IPred<String> {
-  
-  /*TEMPLATE:
+// A cursor over a Deque that can move both ways and change the deque where it
+// stands. Between the tail and the head it sits on the sentinel, where there
+// is no item; moving past either end wraps through that position.
+class DequeCursor<T> {
+  Deque<T> deque;
+  ANode<T> current;
+
+  // Constructor: the node must belong to the deque
+  DequeCursor(Deque<T> deque, ANode<T> current) {
+    this.deque = deque;
+    this.current = current;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.deque ...       -- Deque<T>
+   *  ... this.current ...     -- ANode<T>
+   *  
+   * Methods:
+   *  ... this.atItem() ...             -- boolean
+   *  ... this.get() ...                -- T
+   *  ... this.moveNext() ...           -- void
+   *  ... this.movePrev() ...           -- void
+   *  ... this.insertBefore(T) ...      -- void
+   *  ... this.insertAfter(T) ...       -- void
+   *  ... this.remove() ...             -- T
+   *  ... this.moveToHead() ...         -- void
+   * 
+   */
+
+  // is this cursor at an item, rather than between the tail and the head?
+  // method template: same as class template
+  boolean atItem() {
+    return this.current != this.deque.header;
+  }
+
+  // the item at this cursor
+  // method template: same as class template
+  T get() {
+    if (!this.atItem()) {
+      throw new NoSuchElementException("The cursor is not at an item");
+    }
+    return this.current.value();
+  }
+
+  // EFFECT: moves this cursor one node towards the tail
+  // method template: same as class template
+  void moveNext() {
+    this.current = this.current.next;
+  }
+
+  // EFFECT: moves this cursor one node towards the head
+  // method template: same as class template
+  void movePrev() {
+    this.current = this.current.prev;
+  }
+
+  // EFFECT: adds the given item just before this cursor, which stays where it
+  // is; between the tail and the head, that adds it at the tail
+  // method template: same as class template
+  void insertBefore(T t) {
+    this.deque.insert(t, this.current, this.current.prev);
+  }
+
+  // EFFECT: adds the given item just after this cursor, which stays where it
+  // is; between the tail and the head, that adds it at the head
+  // method template: same as class template
+  void insertAfter(T t) {
+    this.deque.insert(t, this.current.next, this.current);
+  }
+
+  // removes and produces the item at this cursor
+  // EFFECT: moves this cursor to the node that came after it
+  // method template: same as class template
+  T remove() {
+    if (!this.atItem()) {
+      throw new NoSuchElementException("The cursor is not at an item");
+    }
+    ANode<T> after = this.current.next;
+    T t = this.deque.discard(this.current);
+    this.current = after;
+    return t;
+  }
+
+  // EFFECT: moves the node at this cursor to the head of the deque; the
+  // cursor stays on it
+  // method template: same as class template
+  void moveToHead() {
+    if (!this.atItem()) {
+      throw new NoSuchElementException("The cursor is not at an item");
+    }
+    this.deque.moveToHead(this.current);
+  }
+}
+
+// A spliterator over a run of Deque nodes, from first up to (not including)
+// end; it splits by handing off the first half of the run
+class DequeSpliterator<T> implements Spliterator<T> {
+  ANode<T> first;
+  ANode<T> end;
+  int count;
+
+  // Constructor: count must be the number of nodes in the run
+  DequeSpliterator(ANode<T> first, ANode<T> end, int count) {
+    this.first = first;
+    this.end = end;
+    this.count = count;
+  }
+
+  // gives the next item to the action, if there is one
+  public boolean tryAdvance(Consumer<? super T> action) {
+    if (this.count == 0) {
+      return false;
+    }
+    T t = this.first.value();
+    this.first = this.first.next;
+    this.count -= 1;
+    action.accept(t);
+    return true;
+  }
+
+  // gives every remaining item to the action
+  public void forEachRemaining(Consumer<? super T> action) {
+    ANode<T> current = this.first;
+    for (int i = 0; i < this.count; i += 1) {
+      action.accept(current.value());
+      current = current.next;
+    }
+    this.first = current;
+    this.count = 0;
+  }
+
+  // hands the first half of the run to a new spliterator and keeps the rest,
+  // or produces null if the run is too short to split
+  public Spliterator<T> trySplit() {
+    if (this.count < 2) {
+      return null;
+    }
+    int half = this.count / 2;
+    ANode<T> middle = this.first;
+    for (int i = 0; i < half; i += 1) {
+      middle = middle.next;
+    }
+    Spliterator<T> prefix = new DequeSpliterator<T>(this.first, middle, half);
+    this.first = middle;
+    this.count -= half;
+    return prefix;
+  }
+
+  // the exact number of items left
+  public long estimateSize() {
+    return this.count;
+  }
+
+  // the items are in order and their number is always known
+  public int characteristics() {
+    return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+  }
+}
+
+// To represent a hash index from values to the nodes of a Deque that hold
+// them. Each value maps to a deque of its nodes, in the order they appear,
+// and each node remembers its place in that deque so it can leave in O(1).
+class HashIndex<T> {
+  HashMap<T, Deque<ANode<T>>> buckets;
+  IdentityHashMap<ANode<T>, ANode<ANode<T>>> slots;
+  boolean stale;
+
+  // Initial constructor
+  HashIndex() {
+    this.buckets = new HashMap<T, Deque<ANode<T>>>();
+    this.slots = new IdentityHashMap<ANode<T>, ANode<ANode<T>>>();
+    this.stale = false;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.buckets ...     -- HashMap<T, Deque<ANode<T>>>
+   *  ... this.slots ...       -- IdentityHashMap<ANode<T>, ANode<ANode<T>>>
+   *  ... this.stale ...       -- boolean, true once the index may be wrong
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.first(T) ...               -- ANode<T>
+   *  ... this.addFirst(ANode<T>) ...     -- void
+   *  ... this.addLast(ANode<T>) ...      -- void
+   *  ... this.addBetween(ANode<T>, Sentinel<T>) ...   -- void
+   *  ... this.remove(ANode<T>) ...       -- void
+   *  ... this.rebuild(Sentinel<T>) ...   -- void
+   *  ... this.bucket(T) ...              -- Deque<ANode<T>>
+   * 
+   */
+
+  // how many nodes are indexed
+  // method template: same as class template
+  int size() {
+    return this.slots.size();
+  }
+
+  // produces the first node holding the given value, or null if there is none
+  // method template: same as class template
+  ANode<T> first(T value) {
+    Deque<ANode<T>> bucket = this.buckets.get(value);
+    if (bucket == null) {
+      return null;
+    }
+    return bucket.peekHead();
+  }
+
+  // indexes the given node, which comes before every other node with its value
+  // method template: same as class template
+  void addFirst(ANode<T> node) {
+    Deque<ANode<T>> bucket = this.bucket(node.value());
+    bucket.addAtHead(node);
+    this.slots.put(node, bucket.header.next);
+  }
+
+  // indexes the given node, which comes after every other node with its value
+  // method template: same as class template
+  void addLast(ANode<T> node) {
+    Deque<ANode<T>> bucket = this.bucket(node.value());
+    bucket.addAtTail(node);
+    this.slots.put(node, bucket.header.prev);
+  }
+
+  // indexes the given node, which is already linked into the deque with the
+  // given sentinel, in its place among the other nodes with its value. The
+  // deque is walked outwards from the node only until a node with the same
+  // value or an end is reached, so a value held once costs O(1).
+  // method template: same as class template
+  void addBetween(ANode<T> node, Sentinel<T> header) {
+    T value = node.value();
+    Deque<ANode<T>> bucket = this.buckets.get(value);
+    if (bucket == null) {
+      this.addLast(node);
+      return;
+    }
+    ANode<T> before = node.prev;
+    ANode<T> after = node.next;
+    while (true) {
+      if (before == header) {
+        this.addFirst(node);
+        return;
+      }
+      if (Objects.equals(before.value(), value)) {
+        ANode<ANode<T>> slot = this.slots.get(before);
+        this.slots.put(node, bucket.insert(node, slot.next, slot));
+        return;
+      }
+      if (after == header) {
+        this.addLast(node);
+        return;
+      }
+      if (Objects.equals(after.value(), value)) {
+        ANode<ANode<T>> slot = this.slots.get(after);
+        this.slots.put(node, bucket.insert(node, slot, slot.prev));
+        return;
+      }
+      before = before.prev;
+      after = after.next;
+    }
+  }
+
+  // stops indexing the given node, which must still hold its value
+  // method template: same as class template
+  void remove(ANode<T> node) {
+    ANode<ANode<T>> slot = this.slots.remove(node);
+    if (slot != null) {
+      Deque<ANode<T>> bucket = this.buckets.get(node.value());
+      bucket.removeNode(slot);
+      if (bucket.size() == 0) {
+        this.buckets.remove(node.value());
+      }
+    }
+  }
+
+  // indexes every node of the deque with the given sentinel, from scratch
+  // method template: same as class template
+  void rebuild(Sentinel<T> header) {
+    this.buckets.clear();
+    this.slots.clear();
+    for (ANode<T> n = header.next; n != header; n = n.next) {
+      this.addLast(n);
+    }
+    this.stale = false;
+  }
+
+  // the deque of nodes holding the given value, made empty if there is none yet
+  // method template: same as class template
+  Deque<ANode<T>> bucket(T value) {
+    Deque<ANode<T>> bucket = this.buckets.get(value);
+    if (bucket == null) {
+      bucket = new Deque<ANode<T>>();
+      this.buckets.put(value, bucket);
+    }
+    return bucket;
+  }
+}
+
+// To represent a bounded free list of unlinked nodes that a Deque reuses
+class NodePool<T> {
+  ArrayList<Node<T>> free;
+  int limit;
+
+  // Initial constructor
+  NodePool(int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Pool limit cannot be negative");
+    }
+    this.free = new ArrayList<Node<T>>();
+    this.limit = limit;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.free ...      -- ArrayList<Node<T>>
+   *  ... this.limit ...     -- int
+   *  
+   * Methods:
+   *  ... this.take(T, ANode<T>, ANode<T>) ...   -- Node<T>
+   *  ... this.give(Node<T>) ...                 -- void
+   * 
+   */
+
+  // produces a node holding the given data, linked between the given nodes,
+  // reusing a free node if there is one
+  /* FIELDS OF PARAMETERS - 
+   * next.prev, prev.next - ANode<T>
+   * 
+   * METHODS OF PARAMETERS - none
+   */
+  Node<T> take(T t, ANode<T> next, ANode<T> prev) {
+    if (this.free.isEmpty()) {
+      return new Node<T>(t, next, prev);
+    }
+    else {
+      Node<T> node = this.free.remove(this.free.size() - 1);
+      node.data = t;
+      node.link(next, prev);
+      return node;
+    }
+  }
+
+  // keeps the given unlinked node for reuse, unless the pool is full
+  // method template: same as class template
+  void give(Node<T> node) {
+    if (this.free.size() < this.limit) {
+      this.free.add(node);
+    }
+  }
+}
+
+// To represent a deque that can also add, get and remove by position in
+// O(log n) expected time. Its nodes form an ordinary Deque, and some of them
+// carry a SkipTower that links them at higher levels of an indexable skip
+// list; find and removeNode work with the same ANode handles as Deque.
+class IndexedDeque<T> implements IDeque<T> {
+  static final int MAX_LEVEL = 32;
+  Deque<T> list;
+  SkipTower<T> head;
+  Random rand;
+
+  // Initial constructor
+  IndexedDeque() {
+    this.list = new Deque<T>();
+    this.head = new SkipTower<T>(this.list.header, MAX_LEVEL);
+    this.rand = new Random();
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.list ...      -- Deque<T>
+   *  ... this.head ...      -- SkipTower<T>, the full-height tower of the sentinel
+   *  ... this.rand ...      -- Random
+   *  
+   * Methods:
+   *  ... this.size() ...                    -- int
+   *  ... this.addAtHead(T) ...              -- void
+   *  ... this.addAtTail(T) ...              -- void
+   *  ... this.removeFromHead() ...          -- T
+   *  ... this.removeFromTail() ...          -- T
+   *  ... this.find(IPred<T>) ...            -- ANode<T>
+   *  ... this.findData(IPred<T>) ...        -- T
+   *  ... this.get(int) ...                  -- T
+   *  ... this.nodeAt(int) ...               -- ANode<T>
+   *  ... this.add(int, T) ...               -- void
+   *  ... this.removeAt(int) ...             -- T
+   *  ... this.removeNode(ANode<T>) ...      -- void
+   *  ... this.indexOf(ANode<T>) ...         -- int
+   *  ... this.seek(int, SkipTower<T>[], int[]) ...  -- ANode<T>
+   *  ... this.climb(ANode<T>, boolean) ...  -- int
+   *  ... this.remove(ANode<T>) ...          -- T
+   *  ... this.randomHeight() ...            -- int
+   * 
+   * Note: positions count the sentinel as 0, so the item at index i sits at
+   * position i + 1. A tower's width at a level is the number of positions
+   * from it to the next tower at that level.
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  public int size() {
+    return this.list.size();
+  }
+
+  // adds the given item at the head of the deque
+  // method template: same as class template
+  public void addAtHead(T t) {
+    this.add(0, t);
+  }
+
+  // adds the given item at the tail of the deque
+  // method template: same as class template
+  public void addAtTail(T t) {
+    this.add(this.size(), t);
+  }
+
+  // removes and produces the item at the head of the deque
+  // method template: same as class template
+  public T removeFromHead() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    return this.remove(this.list.header.next);
+  }
+
+  // removes and produces the item at the tail of the deque
+  // method template: same as class template
+  public T removeFromTail() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    return this.remove(this.list.header.prev);
+  }
+
+  // produces the first node that satisfies the given predicate, or the sentinel
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  ANode<T> find(IPred<T> pred) {
+    return this.list.find(pred);
+  }
+
+  // produces the first item that satisfies the given predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    return this.list.findData(pred);
+  }
+
+  // produces the item at the given index
+  // method template: same as class template
+  T get(int index) {
+    return this.nodeAt(index).value();
+  }
+
+  // produces the node at the given index
+  // method template: same as class template
+  ANode<T> nodeAt(int index) {
+    if (index < 0 || index >= this.size()) {
+      throw new IndexOutOfBoundsException("No item at position " + index);
+    }
+    return this.seek(index + 1, null, null);
+  }
+
+  // adds the given item so that it ends up at the given index
+  // method template: same as class template
+  @SuppressWarnings("unchecked")
+  void add(int index, T t) {
+    if (index < 0 || index > this.size()) {
+      throw new IndexOutOfBoundsException("Cannot add at position " + index);
+    }
+    SkipTower<T>[] update = (SkipTower<T>[]) new SkipTower<?>[MAX_LEVEL + 1];
+    int[] rank = new int[MAX_LEVEL + 1];
+    ANode<T> before = this.seek(index, update, rank);
+    IndexedNode<T> node = new IndexedNode<T>(t, before.next, before);
+    int target = index + 1;
+    int height = this.randomHeight();
+    SkipTower<T> tower = null;
+    if (height > 0) {
+      tower = new SkipTower<T>(node, height);
+      node.tower = tower;
+    }
+    for (int level = 1; level <= MAX_LEVEL; level += 1) {
+      SkipTower<T> u = update[level];
+      if (level <= height) {
+        tower.prev[level] = u;
+        tower.next[level] = u.next[level];
+        if (u.next[level] != null) {
+          tower.width[level] = rank[level] + u.width[level] + 1 - target;
+          u.next[level].prev[level] = tower;
+        }
+        u.next[level] = tower;
+        u.width[level] = target - rank[level];
+      }
+      else if (u.next[level] != null) {
+        u.width[level] += 1;
+      }
+    }
+  }
+
+  // removes and produces the item at the given index
+  // method template: same as class template
+  T removeAt(int index) {
+    return this.remove(this.nodeAt(index));
+  }
+
+  // removes the given node from this deque, if it belongs to this deque
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.sentinel() ...            -- Sentinel<T>
+   */
+  void removeNode(ANode<T> node) {
+    if (node != this.list.header && node.sentinel() == this.list.header) {
+      this.remove(node);
+    }
+  }
+
+  // produces the index of the given node, or -1 if it is not in this deque
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.sentinel() ...            -- Sentinel<T>
+   */
+  int indexOf(ANode<T> node) {
+    if (node == this.list.header || node.sentinel() != this.list.header) {
+      return -1;
+    }
+    return this.climb(node, false) - 1;
+  }
+
+  // produces the node at the given position, going down the levels from the
+  // head; if update is given, records the last tower at or before the
+  // position on each level, and its position in rank
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - none
+   */
+  ANode<T> seek(int target, SkipTower<T>[] update, int[] rank) {
+    SkipTower<T> current = this.head;
+    int pos = 0;
+    for (int level = MAX_LEVEL; level >= 1; level -= 1) {
+      while (current.next[level] != null && pos + current.width[level] <= target) {
+        pos += current.width[level];
+        current = current.next[level];
+      }
+      if (update != null) {
+        update[level] = current;
+        rank[level] = pos;
+      }
+    }
+    ANode<T> node = current.node;
+    for (; pos < target; pos += 1) {
+      node = node.next;
+    }
+    return node;
+  }
+
+  // produces the position of the given node by climbing back to the head,
+  // always along the highest level reached so far; when removing, shrinks
+  // every tower that spans the node above the node's own height
+  /* FIELDS OF PARAMETERS - 
+   * node.prev - ANode<T>
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.tower() ...               -- SkipTower<T>
+   */
+  int climb(ANode<T> node, boolean removing) {
+    int pos = 0;
+    int level = 0;
+    SkipTower<T> current = node.tower();
+    if (current == null) {
+      ANode<T> back = node;
+      while (back != this.list.header && back.tower() == null) {
+        back = back.prev;
+        pos += 1;
+      }
+      current = (back == this.list.header) ? this.head : back.tower();
+    }
+    else {
+      level = current.height;
+    }
+    while (true) {
+      if (current.height > level) {
+        if (removing) {
+          for (int above = level + 1; above <= current.height; above += 1) {
+            if (current.next[above] != null) {
+              current.width[above] -= 1;
+            }
+          }
+        }
+        level = current.height;
+      }
+      if (current == this.head) {
+        return pos;
+      }
+      current = current.prev[level];
+      pos += current.width[level];
+    }
+  }
+
+  // removes the given node of this deque from every level, and produces its data
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * node.tower() ...               -- SkipTower<T>
+   */
+  T remove(ANode<T> node) {
+    this.climb(node, true);
+    SkipTower<T> tower = node.tower();
+    if (tower != null) {
+      for (int level = 1; level <= tower.height; level += 1) {
+        SkipTower<T> before = tower.prev[level];
+        SkipTower<T> after = tower.next[level];
+        before.next[level] = after;
+        if (after != null) {
+          after.prev[level] = before;
+          before.width[level] += tower.width[level] - 1;
+        }
+      }
+    }
+    return this.list.discard(node);
+  }
+
+  // produces a random tower height: 0 half the time, 1 a quarter of the time, ...
+  // method template: same as class template
+  int randomHeight() {
+    int height = 0;
+    while (height < MAX_LEVEL && this.rand.nextBoolean()) {
+      height += 1;
+    }
+    return height;
+  }
+}
+
+// To represent a node of an IndexedDeque, which may carry a skip-list tower
+class IndexedNode<T> extends Node<T> {
+  SkipTower<T> tower;
+
+  // Initial constructor: links the node between the given nodes, with no tower yet
+  IndexedNode(T data, ANode<T> next, ANode<T> prev) {
+    super(data, next, prev);
+    this.tower = null;
+  }
+
+  // the skip-list tower above this node, or null if it has none
+  // method template: same as class template
+  SkipTower<T> tower() {
+    return this.tower;
+  }
+}
+
+// To represent the levels above one node in an IndexedDeque's skip list;
+// the arrays are indexed by level, from 1 up to the height
+class SkipTower<T> {
+  ANode<T> node;
+  int height;
+  SkipTower<T>[] next;
+  SkipTower<T>[] prev;
+  int[] width;
+
+  // Initial constructor
+  @SuppressWarnings("unchecked")
+  SkipTower(ANode<T> node, int height) {
+    this.node = node;
+    this.height = height;
+    this.next = (SkipTower<T>[]) new SkipTower<?>[height + 1];
+    this.prev = (SkipTower<T>[]) new SkipTower<?>[height + 1];
+    this.width = new int[height + 1];
+  }
+}
+
+// To represent a way to store values of type T as fixed-size records
+interface RecordCodec<T> {
+  // how many bytes every record takes
+  int recordSize();
+
+  // writes the given value as a record starting at the given offset
+  void write(T t, ByteBuffer buffer, int offset);
+
+  // reads the record starting at the given offset
+  T read(ByteBuffer buffer, int offset);
+}
+
+// To represent a double-ended queue of fixed-size records kept outside the
+// Java heap, in a ring of slots spread over direct ByteBuffers. Values are
+// written into and read out of their slot by a RecordCodec, so the heap holds
+// only the buffer array no matter how many records the deque holds.
+class OffHeapDeque<T> implements IDeque<T> {
+  static final int MAX_CHUNK_BYTES = 1 << 30;
+  RecordCodec<T> codec;
+  int recordSize;
+  ByteBuffer[] chunks;
+  int chunkShift;
+  int capacity;
+  int head;
+  int count;
+
+  // Initial constructor: room for the given number of records, rounded up to
+  // a power of two
+  OffHeapDeque(RecordCodec<T> codec, int capacity) {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+    }
+    this.codec = codec;
+    this.recordSize = codec.recordSize();
+    this.capacity = 1;
+    while (this.capacity < capacity) {
+      this.capacity *= 2;
+    }
+    int perChunk = 1;
+    while (perChunk < this.capacity && (long) perChunk * 2 * this.recordSize <= MAX_CHUNK_BYTES) {
+      perChunk *= 2;
+    }
+    this.chunkShift = Integer.numberOfTrailingZeros(perChunk);
+    this.chunks = new ByteBuffer[this.capacity / perChunk];
+    for (int i = 0; i < this.chunks.length; i += 1) {
+      this.chunks[i] = ByteBuffer.allocateDirect(perChunk * this.recordSize);
+    }
+    this.head = 0;
+    this.count = 0;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.codec ...         -- RecordCodec<T>
+   *  ... this.recordSize ...    -- int
+   *  ... this.chunks ...        -- ByteBuffer[]
+   *  ... this.chunkShift ...    -- int, log2 of the slots in one chunk
+   *  ... this.capacity ...      -- int, always a power of two
+   *  ... this.head ...          -- int
+   *  ... this.count ...         -- int
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtHead(T) ...           -- void
+   *  ... this.addAtTail(T) ...           -- void
+   *  ... this.removeFromHead() ...       -- T
+   *  ... this.removeFromTail() ...       -- T
+   *  ... this.findData(IPred<T>) ...     -- T
+   *  ... this.get(int) ...               -- T
+   *  ... this.write(int, T) ...          -- void
+   *  ... this.read(int) ...              -- T
+   *  ... this.checkFull() ...            -- void
+   *  ... this.checkEmpty() ...           -- void
+   * 
+   */
+
+  // how many records are in this deque
+  // method template: same as class template
+  public int size() {
+    return this.count;
+  }
+
+  // writes the given value into a new slot at the head of the deque
+  // method template: same as class template
+  public void addAtHead(T t) {
+    this.checkFull();
+    this.head = (this.head - 1) & (this.capacity - 1);
+    this.write(this.head, t);
+    this.count += 1;
+  }
+
+  // writes the given value into a new slot at the tail of the deque
+  // method template: same as class template
+  public void addAtTail(T t) {
+    this.checkFull();
+    this.write((this.head + this.count) & (this.capacity - 1), t);
+    this.count += 1;
+  }
+
+  // removes the record at the head of the deque and produces its value
+  // method template: same as class template
+  public T removeFromHead() {
+    this.checkEmpty();
+    T t = this.read(this.head);
+    this.head = (this.head + 1) & (this.capacity - 1);
+    this.count -= 1;
+    return t;
+  }
+
+  // removes the record at the tail of the deque and produces its value
+  // method template: same as class template
+  public T removeFromTail() {
+    this.checkEmpty();
+    this.count -= 1;
+    return this.read((this.head + this.count) & (this.capacity - 1));
+  }
+
+  // produces the first value that satisfies the given predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    for (int i = 0; i < this.count; i += 1) {
+      T t = this.read((this.head + i) & (this.capacity - 1));
+      if (pred.apply(t)) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  // produces the value at the given position, counted from the head
+  // method template: same as class template
+  T get(int index) {
+    if (index < 0 || index >= this.count) {
+      throw new IndexOutOfBoundsException("No item at position " + index);
+    }
+    return this.read((this.head + index) & (this.capacity - 1));
+  }
+
+  // writes the given value into the given slot
+  // method template: same as class template
+  void write(int slot, T t) {
+    this.codec.write(t, this.chunks[slot >>> this.chunkShift],
+        (slot & ((1 << this.chunkShift) - 1)) * this.recordSize);
+  }
+
+  // reads the value in the given slot
+  // method template: same as class template
+  T read(int slot) {
+    return this.codec.read(this.chunks[slot >>> this.chunkShift],
+        (slot & ((1 << this.chunkShift) - 1)) * this.recordSize);
+  }
+
+  // throws an exception if every slot is in use
+  // method template: same as class template
+  void checkFull() {
+    if (this.count == this.capacity) {
+      throw new RuntimeException("Cannot add to a full deque");
+    }
+  }
+
+  // throws an exception if no slot is in use
+  // method template: same as class template
+  void checkEmpty() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+  }
+}
+
+// To store Longs as 8-byte records
+class LongCodec implements RecordCodec<Long> {
+
+  // every long takes 8 bytes
+  public int recordSize() {
+    return 8;
+  }
+
+  // writes the given long at the given offset
+  public void write(Long n, ByteBuffer buffer, int offset) {
+    buffer.putLong(offset, n);
+  }
+
+  // reads the long at the given offset
+  public Long read(ByteBuffer buffer, int offset) {
+    return buffer.getLong(offset);
+  }
+}
+
+// To store ASCII Strings of at most a given length as fixed-size records:
+// a length byte followed by the characters, padded to the width
+class AsciiCodec implements RecordCodec<String> {
+  int width;
+
+  // Initial constructor
+  AsciiCodec(int width) {
+    if (width < 0 || width > 255) {
+      throw new IllegalArgumentException("Width must be between 0 and 255");
+    }
+    this.width = width;
+  }
+
+  // every string takes its length byte plus the width
+  public int recordSize() {
+    return this.width + 1;
+  }
+
+  // writes the given string at the given offset
+  public void write(String s, ByteBuffer buffer, int offset) {
+    if (s.length() > this.width) {
+      throw new IllegalArgumentException("String is longer than " + this.width);
+    }
+    buffer.put(offset, (byte) s.length());
+    for (int i = 0; i < s.length(); i += 1) {
+      buffer.put(offset + 1 + i, (byte) s.charAt(i));
+    }
+  }
+
+  // reads the string at the given offset
+  public String read(ByteBuffer buffer, int offset) {
+    byte[] chars = new byte[buffer.get(offset) & 0xFF];
+    for (int i = 0; i < chars.length; i += 1) {
+      chars[i] = buffer.get(offset + 1 + i);
+    }
+    return new String(chars, StandardCharsets.US_ASCII);
+  }
+}
+
+// To represent a way to turn values of type T into bytes and back
+interface BytesCodec<T> {
+  // the bytes that stand for the given value
+  byte[] toBytes(T t);
+
+  // the value the given bytes stand for
+  T fromBytes(byte[] bytes);
+}
+
+// To store Strings as UTF-8 bytes
+class Utf8Codec implements BytesCodec<String> {
+
+  // the UTF-8 bytes of the given string
+  public byte[] toBytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // the string the given UTF-8 bytes spell
+  public String fromBytes(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
+
+// To write the items of a deque to a channel as a compact binary stream, and
+// to load such a stream back one item at a time. The stream is a header (the
+// magic number and the item count) followed by chunks, each a 12-byte header
+// (item count, byte length, CRC32 of the bytes) and then the items, each a
+// variable-length size and the codec's bytes; a chunk of no items ends it.
+// Only one chunk is held in memory at a time, so deques of any size stream
+// through a fixed buffer.
+class DequeSerializer<T> {
+  static final int MAGIC = 0x44455153;
+  static final int CHUNK_HEADER = 12;
+  BytesCodec<T> codec;
+  ByteBuffer buffer;
+
+  // Initial constructor: chunks of up to the given number of bytes
+  DequeSerializer(BytesCodec<T> codec, int chunkSize) {
+    if (chunkSize < CHUNK_HEADER + 16) {
+      throw new IllegalArgumentException("Chunk size must be at least " + (CHUNK_HEADER + 16));
+    }
+    this.codec = codec;
+    this.buffer = ByteBuffer.allocateDirect(chunkSize);
+  }
+
+  // Convenience constructor: 64 KiB chunks
+  DequeSerializer(BytesCodec<T> codec) {
+    this(codec, 1 << 16);
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.codec ...      -- BytesCodec<T>
+   *  ... this.buffer ...     -- ByteBuffer
+   *  
+   * Methods:
+   *  ... this.write(long, Iterable<T>, WritableByteChannel) ...   -- long
+   *  ... this.write(Deque<T>, WritableByteChannel) ...   -- long
+   *  ... this.readInto(IDeque<T>, ReadableByteChannel) ...   -- long
+   *  ... this.read(ReadableByteChannel) ...   -- Deque<T>
+   *  ... this.flushChunk(int, WritableByteChannel) ...   -- int
+   *  ... this.fill(ByteBuffer, ReadableByteChannel) ...   -- void
+   *  ... DequeSerializer.putSize(ByteBuffer, int) ...   -- void
+   *  ... DequeSerializer.getSize(ByteBuffer) ...   -- int
+   * 
+   */
+
+  // writes the given items, which must be the given number of them, to the
+  // given channel, and produces the number of bytes written
+  // method template: same as class template
+  long write(long count, Iterable<T> items, WritableByteChannel out) throws IOException {
+    ByteBuffer head = ByteBuffer.allocate(12);
+    head.putInt(MAGIC).putLong(count).flip();
+    long written = 0;
+    while (head.hasRemaining()) {
+      written += out.write(head);
+    }
+    long seen = 0;
+    int inChunk = 0;
+    this.buffer.clear().position(CHUNK_HEADER);
+    for (T t : items) {
+      byte[] bytes = this.codec.toBytes(t);
+      int needed = 5 + bytes.length;
+      if (needed > this.buffer.remaining() && inChunk > 0) {
+        written += this.flushChunk(inChunk, out);
+        inChunk = 0;
+      }
+      if (needed > this.buffer.remaining()) {
+        ByteBuffer big = ByteBuffer.allocate(CHUNK_HEADER + needed);
+        big.position(CHUNK_HEADER);
+        putSize(big, bytes.length);
+        big.put(bytes);
+        ByteBuffer saved = this.buffer;
+        this.buffer = big;
+        written += this.flushChunk(1, out);
+        this.buffer = saved;
+        this.buffer.clear().position(CHUNK_HEADER);
+      }
+      else {
+        putSize(this.buffer, bytes.length);
+        this.buffer.put(bytes);
+        inChunk += 1;
+      }
+      seen += 1;
+    }
+    if (inChunk > 0) {
+      written += this.flushChunk(inChunk, out);
+    }
+    written += this.flushChunk(0, out);
+    if (seen != count) {
+      throw new IllegalStateException("Expected " + count + " items but wrote " + seen);
+    }
+    return written;
+  }
+
+  // writes every item of the given deque to the given channel, from head to
+  // tail, and produces the number of bytes written
+  // method template: same as class template
+  long write(Deque<T> deque, WritableByteChannel out) throws IOException {
+    return this.write(deque.size(), deque, out);
+  }
+
+  // reads a stream written by write from the given channel, adding each item
+  // at the tail of the given deque as soon as it is decoded, and produces the
+  // number of items added
+  // method template: same as class template
+  long readInto(IDeque<T> target, ReadableByteChannel in) throws IOException {
+    ByteBuffer head = ByteBuffer.allocate(12);
+    this.fill(head, in);
+    if (head.getInt() != MAGIC) {
+      throw new IOException("Not a serialized deque");
+    }
+    long count = head.getLong();
+    long added = 0;
+    CRC32 crc = new CRC32();
+    ByteBuffer chunkHead = ByteBuffer.allocate(CHUNK_HEADER);
+    while (true) {
+      chunkHead.clear();
+      this.fill(chunkHead, in);
+      int items = chunkHead.getInt();
+      int length = chunkHead.getInt();
+      int sum = chunkHead.getInt();
+      if (items == 0) {
+        break;
+      }
+      ByteBuffer body = this.buffer;
+      if (length > body.capacity()) {
+        body = ByteBuffer.allocate(length);
+      }
+      body.clear().limit(length);
+      this.fill(body, in);
+      crc.reset();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != sum) {
+        throw new IOException("Chunk checksum does not match");
+      }
+      for (int i = 0; i < items; i += 1) {
+        byte[] bytes = new byte[getSize(body)];
+        body.get(bytes);
+        target.addAtTail(this.codec.fromBytes(bytes));
+      }
+      added += items;
+    }
+    if (added != count) {
+      throw new IOException("Expected " + count + " items but found " + added);
+    }
+    return added;
+  }
+
+  // reads a stream written by write from the given channel into a new deque
+  // method template: same as class template
+  Deque<T> read(ReadableByteChannel in) throws IOException {
+    Deque<T> deque = new Deque<T>();
+    this.readInto(deque, in);
+    return deque;
+  }
+
+  // EFFECT: fills in the header of the chunk in the buffer, writes the chunk
+  // out and clears the buffer for the next one; produces the bytes written
+  // method template: same as class template
+  int flushChunk(int items, WritableByteChannel out) throws IOException {
+    int length = this.buffer.position() - CHUNK_HEADER;
+    CRC32 crc = new CRC32();
+    ByteBuffer body = this.buffer.duplicate();
+    body.flip().position(CHUNK_HEADER);
+    crc.update(body);
+    this.buffer.putInt(0, items);
+    this.buffer.putInt(4, length);
+    this.buffer.putInt(8, (int) crc.getValue());
+    this.buffer.flip();
+    int written = 0;
+    while (this.buffer.hasRemaining()) {
+      written += out.write(this.buffer);
+    }
+    this.buffer.clear().position(CHUNK_HEADER);
+    return written;
+  }
+
+  // EFFECT: reads from the given channel until the given buffer is full, then
+  // flips it for reading
+  // method template: same as class template
+  void fill(ByteBuffer into, ReadableByteChannel in) throws IOException {
+    while (into.hasRemaining()) {
+      if (in.read(into) < 0) {
+        throw new IOException("Stream ended in the middle of a deque");
+      }
+    }
+    into.flip();
+  }
+
+  // EFFECT: puts the given size into the buffer, seven bits to a byte
+  static void putSize(ByteBuffer buffer, int size) {
+    while ((size & ~0x7F) != 0) {
+      buffer.put((byte) ((size & 0x7F) | 0x80));
+      size >>>= 7;
+    }
+    buffer.put((byte) size);
+  }
+
+  // the size stored at the buffer's position by putSize
+  // EFFECT: moves the position past it
+  static int getSize(ByteBuffer buffer) {
+    int size = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      size |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return size;
+      }
+    }
+  }
+}
+
+// To represent a deque whose items survive a restart: items added at the tail
+// are appended to memory-mapped segment files in a directory, and a small
+// mapped header file records where the head and the tail are.
+class PersistentDeque<T> {
+  static final int MAGIC = 0x44455131;
+  static final int HEADER_SIZE = 32;
+  static final int RECORD_HEADER = 8;
+  static final int END_OF_SEGMENT = -1;
+  Path dir;
+  BytesCodec<T> codec;
+  int segmentSize;
+  int syncEvery;
+  int unsynced;
+  MappedByteBuffer header;
+  int headSegment;
+  int headOffset;
+  MappedByteBuffer headBuffer;
+  int tailSegment;
+  int tailOffset;
+  MappedByteBuffer tailBuffer;
+  long count;
+  HashMap<Integer, MappedByteBuffer> mapped;
+  boolean closed;
+
+  // Initial constructor: opens the deque stored in the given directory, or
+  // starts a new one there. New segments are the given number of bytes (an
+  // existing deque keeps its own size), and the files are forced to disk
+  // after every syncEvery changes (0: only on sync and close).
+  PersistentDeque(Path dir, BytesCodec<T> codec, int segmentSize, int syncEvery)
+      throws IOException {
+    if (segmentSize < 64 || segmentSize > (1 << 30)) {
+      throw new IllegalArgumentException("Segment size must be between 64 and 2^30");
+    }
+    if (syncEvery < 0) {
+      throw new IllegalArgumentException("syncEvery cannot be negative");
+    }
+    this.dir = dir;
+    this.codec = codec;
+    this.syncEvery = syncEvery;
+    this.unsynced = 0;
+    this.mapped = new HashMap<Integer, MappedByteBuffer>();
+    this.closed = false;
+    Files.createDirectories(dir);
+    Path headerPath = dir.resolve("header");
+    boolean existed = Files.exists(headerPath);
+    this.header = this.map(headerPath, HEADER_SIZE);
+    if (existed) {
+      if (this.header.getInt(0) != MAGIC) {
+        throw new IOException("Not a deque header: " + headerPath);
+      }
+      this.segmentSize = this.header.getInt(4);
+      this.headSegment = this.header.getInt(8);
+      this.headOffset = this.header.getInt(12);
+      this.tailSegment = this.header.getInt(16);
+      this.tailOffset = this.header.getInt(20);
+      this.count = this.header.getLong(24);
+    }
+    else {
+      this.segmentSize = segmentSize;
+      this.header.putInt(0, MAGIC);
+      this.header.putInt(4, segmentSize);
+    }
+    this.headBuffer = this.segment(this.headSegment);
+    this.tailBuffer = this.segment(this.tailSegment);
+    this.recover();
+    this.writeHeader();
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.dir ...           -- Path
+   *  ... this.codec ...         -- BytesCodec<T>
+   *  ... this.segmentSize ...   -- int
+   *  ... this.syncEvery ...     -- int
+   *  ... this.unsynced ...      -- int
+   *  ... this.header ...        -- MappedByteBuffer
+   *  ... this.headSegment ...   -- int
+   *  ... this.headOffset ...    -- int
+   *  ... this.headBuffer ...    -- MappedByteBuffer
+   *  ... this.tailSegment ...   -- int
+   *  ... this.tailOffset ...    -- int
+   *  ... this.tailBuffer ...    -- MappedByteBuffer
+   *  ... this.count ...         -- long
+   *  ... this.mapped ...        -- HashMap<Integer, MappedByteBuffer>
+   *  ... this.closed ...        -- boolean
+   *  
+   * Methods:
+   *  ... this.size() ...                     -- long
+   *  ... this.addAtTail(T) ...               -- void
+   *  ... this.removeFromHead() ...           -- T
+   *  ... this.findData(IPred<T>) ...         -- T
+   *  ... this.sync() ...                     -- void
+   *  ... this.close() ...                    -- void
+   *  ... this.recover() ...                  -- void
+   *  ... this.recordAt(ByteBuffer, int) ...  -- int
+   *  ... this.atEnd(ByteBuffer, int) ...     -- boolean
+   *  ... this.changed() ...                  -- void
+   *  ... this.writeHeader() ...              -- void
+   *  ... this.checkOpen() ...                -- void
+   *  ... this.segment(int) ...               -- MappedByteBuffer
+   *  ... this.segmentPath(int) ...           -- Path
+   *  ... this.map(Path, int) ...             -- MappedByteBuffer
+   * 
+   * Note: a record is an int holding its length plus one (0 means no record
+   * yet), an int CRC32 of its bytes, then the bytes. A segment ends where
+   * the next record would not fit, marked by END_OF_SEGMENT if there is room.
+   * Segments are numbered upwards and never reused; a segment is deleted
+   * once the head has left it. Every segment from the head to the tail is
+   * mapped once and kept in mapped, and a segment's mapping is dropped
+   * before its file is deleted.
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  long size() {
+    this.checkOpen();
+    return this.count;
+  }
+
+  // appends the given item to the tail segment and bumps the tail
+  // method template: same as class template
+  void addAtTail(T t) {
+    this.checkOpen();
+    byte[] bytes = this.codec.toBytes(t);
+    int need = RECORD_HEADER + bytes.length;
+    if (need > this.segmentSize) {
+      throw new IllegalArgumentException("Record is larger than a segment");
+    }
+    if (this.tailOffset + need > this.segmentSize) {
+      if (this.tailOffset + 4 <= this.segmentSize) {
+        this.tailBuffer.putInt(this.tailOffset, END_OF_SEGMENT);
+      }
+      if (this.syncEvery > 0) {
+        this.tailBuffer.force();
+      }
+      this.tailSegment += 1;
+      this.tailOffset = 0;
+      this.tailBuffer = this.segment(this.tailSegment);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    this.tailBuffer.putInt(this.tailOffset + 4, (int) crc.getValue());
+    this.tailBuffer.put(this.tailOffset + RECORD_HEADER, bytes);
+    this.tailBuffer.putInt(this.tailOffset, bytes.length + 1);
+    this.tailOffset += need;
+    this.count += 1;
+    this.changed();
+  }
+
+  // reads the item at the head and bumps the head past it
+  // method template: same as class template
+  T removeFromHead() {
+    this.checkOpen();
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    while (this.atEnd(this.headBuffer, this.headOffset)) {
+      int old = this.headSegment;
+      this.headBuffer = null;
+      this.mapped.remove(old);
+      this.headSegment += 1;
+      this.headOffset = 0;
+      this.headBuffer = this.segment(this.headSegment);
+      // the header must point past the old segment before its file goes
+      this.writeHeader();
+      if (this.syncEvery > 0) {
+        this.header.force();
+      }
+      try {
+        Files.deleteIfExists(this.segmentPath(old));
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    byte[] bytes = new byte[this.headBuffer.getInt(this.headOffset) - 1];
+    this.headBuffer.get(this.headOffset + RECORD_HEADER, bytes);
+    this.headOffset += RECORD_HEADER + bytes.length;
+    this.count -= 1;
+    this.changed();
+    return this.codec.fromBytes(bytes);
+  }
+
+  // produces the first item that satisfies the given predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  T findData(IPred<T> pred) {
+    this.checkOpen();
+    int segment = this.headSegment;
+    int offset = this.headOffset;
+    ByteBuffer buffer = this.headBuffer;
+    for (long i = 0; i < this.count; i += 1) {
+      while (this.atEnd(buffer, offset)) {
+        segment += 1;
+        offset = 0;
+        buffer = this.segment(segment);
+      }
+      byte[] bytes = new byte[buffer.getInt(offset) - 1];
+      buffer.get(offset + RECORD_HEADER, bytes);
+      offset += RECORD_HEADER + bytes.length;
+      T t = this.codec.fromBytes(bytes);
+      if (pred.apply(t)) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  // forces the tail segment and the header to disk
+  // method template: same as class template
+  void sync() {
+    this.checkOpen();
+    this.tailBuffer.force();
+    this.header.force();
+    this.unsynced = 0;
+  }
+
+  // forces everything to disk and drops every mapping; any later use of
+  // the deque throws
+  // method template: same as class template
+  void close() {
+    this.sync();
+    this.header = null;
+    this.headBuffer = null;
+    this.tailBuffer = null;
+    this.mapped.clear();
+    this.closed = true;
+  }
+
+  // throws if this deque has been closed
+  // method template: same as class template
+  void checkOpen() {
+    if (this.closed) {
+      throw new IllegalStateException("The deque has been closed");
+    }
+  }
+
+  // moves the tail past any records that were written after the header was
+  // last saved, which can only be in the tail segment or the ones after it
+  // method template: same as class template
+  void recover() {
+    while (true) {
+      if (this.atEnd(this.tailBuffer, this.tailOffset)) {
+        if (!Files.exists(this.segmentPath(this.tailSegment + 1))) {
+          return;
+        }
+        this.tailSegment += 1;
+        this.tailOffset = 0;
+        this.tailBuffer = this.segment(this.tailSegment);
+      }
+      else {
+        int length = this.recordAt(this.tailBuffer, this.tailOffset);
+        if (length < 0) {
+          return;
+        }
+        this.tailOffset += RECORD_HEADER + length;
+        this.count += 1;
+      }
+    }
+  }
+
+  // produces the length of the whole, intact record at the given offset, or
+  // -1 if there is none
+  // method template: same as class template
+  int recordAt(ByteBuffer buffer, int offset) {
+    int length = buffer.getInt(offset) - 1;
+    if (length < 0 || length > this.segmentSize - offset - RECORD_HEADER) {
+      return -1;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(offset + RECORD_HEADER, bytes);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+      return -1;
+    }
+    return length;
+  }
+
+  // is the given offset past the last record of its segment?
+  // method template: same as class template
+  boolean atEnd(ByteBuffer buffer, int offset) {
+    return offset + RECORD_HEADER > this.segmentSize
+        || buffer.getInt(offset) == END_OF_SEGMENT;
+  }
+
+  // saves the pointers and forces the files out if the sync policy says so
+  // method template: same as class template
+  void changed() {
+    this.writeHeader();
+    if (this.syncEvery > 0) {
+      this.unsynced += 1;
+      if (this.unsynced >= this.syncEvery) {
+        this.sync();
+      }
+    }
+  }
+
+  // writes the head and tail pointers and the count into the header
+  // method template: same as class template
+  void writeHeader() {
+    this.header.putInt(8, this.headSegment);
+    this.header.putInt(12, this.headOffset);
+    this.header.putInt(16, this.tailSegment);
+    this.header.putInt(20, this.tailOffset);
+    this.header.putLong(24, this.count);
+  }
+
+  // the mapping of the segment with the given number, mapping it the first
+  // time it is asked for
+  // method template: same as class template
+  MappedByteBuffer segment(int number) {
+    MappedByteBuffer buffer = this.mapped.get(number);
+    if (buffer != null) {
+      return buffer;
+    }
+    try {
+      buffer = this.map(this.segmentPath(number), this.segmentSize);
+      this.mapped.put(number, buffer);
+      return buffer;
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // the file of the segment with the given number
+  // method template: same as class template
+  Path segmentPath(int number) {
+    return this.dir.resolve("segment-" + number + ".log");
+  }
+
+  // maps the given number of bytes of the given file, creating it if needed
+  // method template: same as class template
+  MappedByteBuffer map(Path file, int size) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+}
+
+// To represent a sliding window over a stream of items that can produce its
+// smallest and largest item at any time. Besides the window itself it keeps
+// two monotonic deques of candidates: mins rises from head to tail and maxes
+// falls, so the answer is always at the head. Every item enters and leaves
+// each deque at most once, so push and evict take amortized O(1).
+class MonotonicWindow<T> {
+  Comparator<T> order;
+  int width;
+  Deque<T> window;
+  Deque<T> mins;
+  Deque<T> maxes;
+
+  // Initial constructor: the window holds at most the given number of the
+  // latest items, or any number if width is 0
+  MonotonicWindow(Comparator<T> order, int width) {
+    if (width < 0) {
+      throw new IllegalArgumentException("Width cannot be negative");
+    }
+    this.order = order;
+    this.width = width;
+    this.window = new Deque<T>();
+    this.mins = new Deque<T>();
+    this.maxes = new Deque<T>();
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.order ...     -- Comparator<T>
+   *  ... this.width ...     -- int
+   *  ... this.window ...    -- Deque<T>
+   *  ... this.mins ...      -- Deque<T>
+   *  ... this.maxes ...     -- Deque<T>
+   *  
+   * Methods:
+   *  ... this.size() ...        -- int
+   *  ... this.push(T) ...       -- void
+   *  ... this.evict() ...       -- T
+   *  ... this.min() ...         -- T
+   *  ... this.max() ...         -- T
+   * 
+   */
+
+  // how many items are in the window
+  // method template: same as class template
+  int size() {
+    return this.window.size();
+  }
+
+  // adds the given item as the newest in the window, evicting the oldest if
+  // the window is over its width
+  // method template: same as class template
+  void push(T t) {
+    this.window.addAtTail(t);
+    while (this.mins.size() > 0 && this.order.compare(this.mins.peekTail(), t) > 0) {
+      this.mins.removeFromTail();
+    }
+    this.mins.addAtTail(t);
+    while (this.maxes.size() > 0 && this.order.compare(this.maxes.peekTail(), t) < 0) {
+      this.maxes.removeFromTail();
+    }
+    this.maxes.addAtTail(t);
+    if (this.width > 0 && this.window.size() > this.width) {
+      this.evict();
+    }
+  }
+
+  // removes and produces the oldest item in the window
+  // method template: same as class template
+  T evict() {
+    T oldest = this.window.removeFromHead();
+    if (this.order.compare(this.mins.peekHead(), oldest) == 0) {
+      this.mins.removeFromHead();
+    }
+    if (this.order.compare(this.maxes.peekHead(), oldest) == 0) {
+      this.maxes.removeFromHead();
+    }
+    return oldest;
+  }
+
+  // the smallest item in the window
+  // method template: same as class template
+  T min() {
+    return this.mins.peekHead();
+  }
+
+  // the largest item in the window
+  // method template: same as class template
+  T max() {
+    return this.maxes.peekHead();
+  }
+}
+
+// To represent a deque that wraps another and measures it: how often each
+// operation runs, how deep the deque is and has been, and how long adds,
+// removes and finds take. Measuring is off until enabled, and then costs
+// one volatile read per operation.
+class MeteredDeque<T> implements IDeque<T> {
+  static final int ADD_AT_HEAD = 0;
+  static final int ADD_AT_TAIL = 1;
+  static final int REMOVE_FROM_HEAD = 2;
+  static final int REMOVE_FROM_TAIL = 3;
+  static final int FIND = 4;
+  static final String[] OPERATIONS =
+      {"AddAtHead", "AddAtTail", "RemoveFromHead", "RemoveFromTail", "FindData"};
+  IDeque<T> inner;
+  volatile boolean enabled;
+  LongAdder[] counts;
+  AtomicInteger highWater;
+  LatencyHistogram addLatency;
+  LatencyHistogram removeLatency;
+  LatencyHistogram findLatency;
+
+  // Initial constructor: measures the given deque once enabled
+  MeteredDeque(IDeque<T> inner) {
+    this.inner = inner;
+    this.enabled = false;
+    this.counts = new LongAdder[OPERATIONS.length];
+    for (int i = 0; i < this.counts.length; i += 1) {
+      this.counts[i] = new LongAdder();
+    }
+    this.highWater = new AtomicInteger(inner.size());
+    this.addLatency = new LatencyHistogram();
+    this.removeLatency = new LatencyHistogram();
+    this.findLatency = new LatencyHistogram();
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.inner ...           -- IDeque<T>
+   *  ... this.enabled ...         -- boolean
+   *  ... this.counts ...          -- LongAdder[], indexed by operation
+   *  ... this.highWater ...       -- AtomicInteger
+   *  ... this.addLatency ...      -- LatencyHistogram
+   *  ... this.removeLatency ...   -- LatencyHistogram
+   *  ... this.findLatency ...     -- LatencyHistogram
+   *  
+   * Methods:
+   *  ... this.size() ...                     -- int
+   *  ... this.addAtHead(T) ...               -- void
+   *  ... this.addAtTail(T) ...               -- void
+   *  ... this.removeFromHead() ...           -- T
+   *  ... this.removeFromTail() ...           -- T
+   *  ... this.findData(IPred<T>) ...         -- T
+   *  ... this.count(int) ...                 -- long
+   *  ... this.reset() ...                    -- void
+   *  ... this.register(String) ...           -- ObjectName
+   *  ... this.added(int, long) ...           -- void
+   * 
+   */
+
+  // how many items are in the wrapped deque; this is also the depth gauge
+  // method template: same as class template
+  public int size() {
+    return this.inner.size();
+  }
+
+  // adds the given item at the head of the wrapped deque
+  // method template: same as class template
+  public void addAtHead(T t) {
+    if (!this.enabled) {
+      this.inner.addAtHead(t);
+      return;
+    }
+    long start = System.nanoTime();
+    this.inner.addAtHead(t);
+    this.added(ADD_AT_HEAD, System.nanoTime() - start);
+  }
+
+  // adds the given item at the tail of the wrapped deque
+  // method template: same as class template
+  public void addAtTail(T t) {
+    if (!this.enabled) {
+      this.inner.addAtTail(t);
+      return;
+    }
+    long start = System.nanoTime();
+    this.inner.addAtTail(t);
+    this.added(ADD_AT_TAIL, System.nanoTime() - start);
+  }
+
+  // removes and produces the item at the head of the wrapped deque
+  // method template: same as class template
+  public T removeFromHead() {
+    if (!this.enabled) {
+      return this.inner.removeFromHead();
+    }
+    long start = System.nanoTime();
+    T t = this.inner.removeFromHead();
+    this.removeLatency.record(System.nanoTime() - start);
+    this.counts[REMOVE_FROM_HEAD].increment();
+    return t;
+  }
+
+  // removes and produces the item at the tail of the wrapped deque
+  // method template: same as class template
+  public T removeFromTail() {
+    if (!this.enabled) {
+      return this.inner.removeFromTail();
+    }
+    long start = System.nanoTime();
+    T t = this.inner.removeFromTail();
+    this.removeLatency.record(System.nanoTime() - start);
+    this.counts[REMOVE_FROM_TAIL].increment();
+    return t;
+  }
+
+  // produces the first item of the wrapped deque that satisfies the given
+  // predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    if (!this.enabled) {
+      return this.inner.findData(pred);
+    }
+    long start = System.nanoTime();
+    T t = this.inner.findData(pred);
+    this.findLatency.record(System.nanoTime() - start);
+    this.counts[FIND].increment();
+    return t;
+  }
+
+  // how many times the given operation has run while enabled
+  // method template: same as class template
+  long count(int operation) {
+    return this.counts[operation].sum();
+  }
+
+  // forgets every measurement, starting the high-water mark at the current depth
+  // method template: same as class template
+  void reset() {
+    for (LongAdder c : this.counts) {
+      c.reset();
+    }
+    this.highWater.set(this.inner.size());
+    this.addLatency.reset();
+    this.removeLatency.reset();
+    this.findLatency.reset();
+  }
+
+  // publishes this deque's measurements as an MBean with the given name in the
+  // platform MBean server, and produces the name
+  // method template: same as class template
+  ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName(name);
+    ManagementFactory.getPlatformMBeanServer()
+        .registerMBean(new DequeMetricsMBean(this), objectName);
+    return objectName;
+  }
+
+  // records an add of the given kind that took the given time
+  // method template: same as class template
+  void added(int operation, long nanos) {
+    this.addLatency.record(nanos);
+    this.counts[operation].increment();
+    int depth = this.inner.size();
+    if (depth > this.highWater.get()) {
+      this.highWater.accumulateAndGet(depth, Math::max);
+    }
+  }
+}
+
+// To represent a histogram of latencies in nanoseconds, HDR style: each power
+// of two is split into 16 buckets, so every reading is kept to within about
+// 6% while the whole range of a long fits in 1024 counters
+class LatencyHistogram {
+  static final int SUB_BITS = 4;
+  static final int SUB_COUNT = 1 << SUB_BITS;
+  AtomicLongArray counts;
+  AtomicLong max;
+
+  // Initial constructor
+  LatencyHistogram() {
+    this.counts = new AtomicLongArray(64 * SUB_COUNT);
+    this.max = new AtomicLong(0);
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.counts ...     -- AtomicLongArray
+   *  ... this.max ...        -- AtomicLong
+   *  
+   * Methods:
+   *  ... this.record(long) ...        -- void
+   *  ... this.total() ...             -- long
+   *  ... this.percentile(double) ...  -- long
+   *  ... this.reset() ...             -- void
+   *  ... this.bucket(long) ...        -- int
+   *  ... this.lowest(int) ...         -- long
+   * 
+   */
+
+  // counts one reading of the given number of nanoseconds
+  // method template: same as class template
+  void record(long nanos) {
+    long value = Math.max(0, nanos);
+    this.counts.incrementAndGet(this.bucket(value));
+    if (value > this.max.get()) {
+      this.max.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  // how many readings have been counted
+  // method template: same as class template
+  long total() {
+    long total = 0;
+    for (int i = 0; i < this.counts.length(); i += 1) {
+      total += this.counts.get(i);
+    }
+    return total;
+  }
+
+  // the reading that the given percentage of readings are at or below, to
+  // the precision of a bucket, or 0 if there are no readings
+  // method template: same as class template
+  long percentile(double percent) {
+    long total = this.total();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < this.counts.length(); i += 1) {
+      seen += this.counts.get(i);
+      if (seen >= rank) {
+        return Math.min(this.lowest(i + 1) - 1, this.max.get());
+      }
+    }
+    return this.max.get();
+  }
+
+  // forgets every reading
+  // method template: same as class template
+  void reset() {
+    for (int i = 0; i < this.counts.length(); i += 1) {
+      this.counts.set(i, 0);
+    }
+    this.max.set(0);
+  }
+
+  // the bucket that holds the given reading: readings below 16 get a bucket
+  // each, and above that the top five bits pick the bucket
+  // method template: same as class template
+  int bucket(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+  }
+
+  // the smallest reading that falls in the given bucket
+  // method template: same as class template
+  long lowest(int bucket) {
+    if (bucket < SUB_COUNT) {
+      return bucket;
+    }
+    int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+    return (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << (exponent - SUB_BITS);
+  }
+}
+
+// To publish a MeteredDeque's measurements over JMX. It is a DynamicMBean
+// because a standard MBean needs a public interface, which this file can't have.
+class DequeMetricsMBean implements DynamicMBean {
+  MeteredDeque<?> deque;
+
+  // Initial constructor
+  DequeMetricsMBean(MeteredDeque<?> deque) {
+    this.deque = deque;
+  }
+
+  // produces the value of the attribute with the given name
+  public Object getAttribute(String name) throws AttributeNotFoundException {
+    for (int i = 0; i < MeteredDeque.OPERATIONS.length; i += 1) {
+      if (name.equals(MeteredDeque.OPERATIONS[i] + "Count")) {
+        return this.deque.count(i);
+      }
+    }
+    String[] kinds = {"Add", "Remove", "Find"};
+    LatencyHistogram[] histograms =
+        {this.deque.addLatency, this.deque.removeLatency, this.deque.findLatency};
+    for (int i = 0; i < kinds.length; i += 1) {
+      if (name.equals(kinds[i] + "LatencyP50")) {
+        return histograms[i].percentile(50);
+      }
+      if (name.equals(kinds[i] + "LatencyP99")) {
+        return histograms[i].percentile(99);
+      }
+      if (name.equals(kinds[i] + "LatencyMax")) {
+        return histograms[i].max.get();
+      }
+    }
+    if (name.equals("Depth")) {
+      return this.deque.size();
+    }
+    if (name.equals("HighWater")) {
+      return this.deque.highWater.get();
+    }
+    if (name.equals("Enabled")) {
+      return this.deque.enabled;
+    }
+    throw new AttributeNotFoundException("No attribute " + name);
+  }
+
+  // turns measuring on or off; Enabled is the only writable attribute, and
+  // only to a Boolean
+  public void setAttribute(Attribute attribute)
+      throws AttributeNotFoundException, InvalidAttributeValueException {
+    if (!attribute.getName().equals("Enabled")) {
+      throw new AttributeNotFoundException("Cannot set " + attribute.getName());
+    }
+    if (!(attribute.getValue() instanceof Boolean)) {
+      throw new InvalidAttributeValueException("Enabled must be a Boolean");
+    }
+    this.deque.enabled = (Boolean) attribute.getValue();
+  }
+
+  // produces the values of the attributes with the given names that exist
+  public AttributeList getAttributes(String[] names) {
+    AttributeList list = new AttributeList();
+    for (String name : names) {
+      try {
+        list.add(new Attribute(name, this.getAttribute(name)));
+      }
+      catch (AttributeNotFoundException e) {
+        continue;
+      }
+    }
+    return list;
+  }
+
+  // sets the given attributes that can be set, and produces them
+  public AttributeList setAttributes(AttributeList attributes) {
+    AttributeList set = new AttributeList();
+    for (Attribute a : attributes.asList()) {
+      try {
+        this.setAttribute(a);
+        set.add(a);
+      }
+      catch (AttributeNotFoundException | InvalidAttributeValueException e) {
+        continue;
+      }
+    }
+    return set;
+  }
+
+  // runs the operation with the given name; reset is the only one
+  public Object invoke(String name, Object[] params, String[] signature) {
+    if (!name.equals("reset")) {
+      throw new UnsupportedOperationException("No operation " + name);
+    }
+    this.deque.reset();
+    return null;
+  }
+
+  // describes the attributes and the reset operation
+  public MBeanInfo getMBeanInfo() {
+    ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    for (String op : MeteredDeque.OPERATIONS) {
+      attributes.add(new MBeanAttributeInfo(op + "Count", "long",
+          "times " + op + " ran", true, false, false));
+    }
+    for (String kind : new String[] {"Add", "Remove", "Find"}) {
+      for (String stat : new String[] {"P50", "P99", "Max"}) {
+        attributes.add(new MBeanAttributeInfo(kind + "Latency" + stat, "long",
+            kind + " latency " + stat + " in nanoseconds", true, false, false));
+      }
+    }
+    attributes.add(new MBeanAttributeInfo("Depth", "int", "items in the deque",
+        true, false, false));
+    attributes.add(new MBeanAttributeInfo("HighWater", "int", "most items seen at once",
+        true, false, false));
+    attributes.add(new MBeanAttributeInfo("Enabled", "boolean", "whether to measure",
+        true, true, true));
+    MBeanOperationInfo reset = new MBeanOperationInfo("reset", "forget every measurement",
+        null, "void", MBeanOperationInfo.ACTION);
+    return new MBeanInfo(DequeMetricsMBean.class.getName(), "Deque measurements",
+        attributes.toArray(new MBeanAttributeInfo[0]), null,
+        new MBeanOperationInfo[] {reset}, null);
+  }
+}
+
+// To represent an immutable deque (Okasaki's banker's deque): adding or
+// removing produces a new version that shares structure with the old one,
+// which stays valid, so keeping a snapshot costs nothing. The items are
+// split between a front list and a reversed rear list, neither more than
+// three times (plus one) as long as the other; when one grows too long, half
+// of it is moved across with lazy lists, which keeps every operation at
+// amortized O(1) even when old versions are used again.
+class BankersDeque<T> implements Iterable<T> {
+  static final int BALANCE = 3;
+  final int frontSize;
+  final LazyList<T> front;
+  final int rearSize;
+  final LazyList<T> rear;
+
+  // Initial constructor: the empty deque
+  BankersDeque() {
+    this(0, LazyList.<T>empty(), 0, LazyList.<T>empty());
+  }
+
+  // Convenience constructor: the given lists, which must already be balanced
+  BankersDeque(int frontSize, LazyList<T> front, int rearSize, LazyList<T> rear) {
+    this.frontSize = frontSize;
+    this.front = front;
+    this.rearSize = rearSize;
+    this.rear = rear;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.frontSize ...    -- int
+   *  ... this.front ...        -- LazyList<T>, head first
+   *  ... this.rearSize ...     -- int
+   *  ... this.rear ...         -- LazyList<T>, tail first
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtHead(T) ...           -- BankersDeque<T>
+   *  ... this.addAtTail(T) ...           -- BankersDeque<T>
+   *  ... this.peekHead() ...             -- T
+   *  ... this.peekTail() ...             -- T
+   *  ... this.dropHead() ...             -- BankersDeque<T>
+   *  ... this.dropTail() ...             -- BankersDeque<T>
+   *  ... this.findData(IPred<T>) ...     -- T
+   *  ... this.iterator() ...             -- Iterator<T>
+   *  ... BankersDeque.balance(int, LazyList<T>, int, LazyList<T>) ...  -- BankersDeque<T>
+   * 
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  int size() {
+    return this.frontSize + this.rearSize;
+  }
+
+  // produces this deque with the given item added at the head
+  // method template: same as class template
+  BankersDeque<T> addAtHead(T t) {
+    return balance(this.frontSize + 1, LazyList.cons(t, this.front), this.rearSize, this.rear);
+  }
+
+  // produces this deque with the given item added at the tail
+  // method template: same as class template
+  BankersDeque<T> addAtTail(T t) {
+    return balance(this.frontSize, this.front, this.rearSize + 1, LazyList.cons(t, this.rear));
+  }
+
+  // the item at the head of this deque
+  // method template: same as class template
+  T peekHead() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot look into an empty deque");
+    }
+    if (this.frontSize == 0) {
+      return this.rear.first();
+    }
+    return this.front.first();
+  }
+
+  // the item at the tail of this deque
+  // method template: same as class template
+  T peekTail() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot look into an empty deque");
+    }
+    if (this.rearSize == 0) {
+      return this.front.first();
+    }
+    return this.rear.first();
+  }
+
+  // produces this deque without the item at its head
+  // method template: same as class template
+  BankersDeque<T> dropHead() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    if (this.frontSize == 0) {
+      return new BankersDeque<T>();
+    }
+    return balance(this.frontSize - 1, this.front.rest(), this.rearSize, this.rear);
+  }
+
+  // produces this deque without the item at its tail
+  // method template: same as class template
+  BankersDeque<T> dropTail() {
+    if (this.size() == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    if (this.rearSize == 0) {
+      return new BankersDeque<T>();
+    }
+    return balance(this.frontSize, this.front, this.rearSize - 1, this.rear.rest());
+  }
+
+  // produces the first item that satisfies the given predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  T findData(IPred<T> pred) {
+    for (T t : this) {
+      if (pred.apply(t)) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  // returns the iterator of this deque, from head to tail
+  @SuppressWarnings("unchecked")
+  public Iterator<T> iterator() {
+    Object[] rearItems = new Object[this.rearSize];
+    LazyList<T> r = this.rear;
+    for (int i = this.rearSize - 1; i >= 0; i -= 1) {
+      rearItems[i] = r.first();
+      r = r.rest();
+    }
+    ArrayList<T> items = new ArrayList<T>(this.size());
+    LazyList<T> f = this.front;
+    for (int i = 0; i < this.frontSize; i += 1) {
+      items.add(f.first());
+      f = f.rest();
+    }
+    for (Object t : rearItems) {
+      items.add((T) t);
+    }
+    return items.iterator();
+  }
+
+  // produces a deque of the given lists, moving half the items across if one
+  // list has grown more than BALANCE times (plus one) as long as the other
+  static <T> BankersDeque<T> balance(int frontSize, LazyList<T> front,
+      int rearSize, LazyList<T> rear) {
+    int total = frontSize + rearSize;
+    if (frontSize > BALANCE * rearSize + 1) {
+      int keep = total / 2;
+      return new BankersDeque<T>(keep, LazyList.take(keep, front), total - keep,
+          LazyList.append(rear, LazyList.reverse(LazyList.drop(keep, front))));
+    }
+    if (rearSize > BALANCE * frontSize + 1) {
+      int keep = total / 2;
+      return new BankersDeque<T>(total - keep,
+          LazyList.append(front, LazyList.reverse(LazyList.drop(keep, rear))),
+          keep, LazyList.take(keep, rear));
+    }
+    return new BankersDeque<T>(frontSize, front, rearSize, rear);
+  }
+}
+
+// To represent an immutable list whose cells are computed only when first
+// needed, and then remembered
+class LazyList<T> {
+  static final LazyCell<Object> NONE = new LazyCell<Object>(null, null);
+  volatile LazyCell<T> cell;
+  volatile Supplier<LazyCell<T>> thunk;
+
+  // Initial constructor: a list whose first cell the given thunk computes
+  LazyList(Supplier<LazyCell<T>> thunk) {
+    this.cell = null;
+    this.thunk = thunk;
+  }
+
+  // Convenience constructor: a list whose first cell is already known
+  LazyList(LazyCell<T> cell) {
+    this.cell = cell;
+    this.thunk = null;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.cell ...      -- LazyCell<T>, or null until computed
+   *  ... this.thunk ...     -- Supplier<LazyCell<T>>, or null once computed
+   *  
+   * Methods:
+   *  ... this.force() ...        -- LazyCell<T>
+   *  ... this.isEmpty() ...      -- boolean
+   *  ... this.first() ...        -- T
+   *  ... this.rest() ...         -- LazyList<T>
+   * 
+   * Note: two threads may both compute a cell; they get equal answers and
+   * either may be kept, so readers never lock.
+   */
+
+  // the first cell of this list, computing it if this is the first time
+  // method template: same as class template
+  LazyCell<T> force() {
+    LazyCell<T> c = this.cell;
+    if (c != null) {
+      return c;
+    }
+    Supplier<LazyCell<T>> t = this.thunk;
+    if (t == null) {
+      return this.cell;
+    }
+    c = t.get();
+    this.cell = c;
+    this.thunk = null;
+    return c;
+  }
+
+  // is this list empty?
+  // method template: same as class template
+  boolean isEmpty() {
+    return this.force() == NONE;
+  }
+
+  // the first item of this list
+  // method template: same as class template
+  T first() {
+    return this.force().first;
+  }
+
+  // the list after the first item
+  // method template: same as class template
+  LazyList<T> rest() {
+    return this.force().rest;
+  }
+
+  // the empty list
+  @SuppressWarnings("unchecked")
+  static <T> LazyList<T> empty() {
+    return new LazyList<T>((LazyCell<T>) NONE);
+  }
+
+  // the given item in front of the given list
+  static <T> LazyList<T> cons(T t, LazyList<T> rest) {
+    return new LazyList<T>(new LazyCell<T>(t, rest));
+  }
+
+  // the first n items of the given list, one cell at a time
+  static <T> LazyList<T> take(int n, LazyList<T> list) {
+    if (n == 0) {
+      return empty();
+    }
+    return new LazyList<T>(() -> {
+      LazyCell<T> c = list.force();
+      if (c == NONE) {
+        return c;
+      }
+      return new LazyCell<T>(c.first, take(n - 1, c.rest));
+    });
+  }
+
+  // the given list without its first n items, all skipped when first needed
+  static <T> LazyList<T> drop(int n, LazyList<T> list) {
+    return new LazyList<T>(() -> {
+      LazyList<T> current = list;
+      for (int i = 0; i < n && !current.isEmpty(); i += 1) {
+        current = current.rest();
+      }
+      return current.force();
+    });
+  }
+
+  // the given list backwards, all reversed when first needed
+  static <T> LazyList<T> reverse(LazyList<T> list) {
+    return new LazyList<T>(() -> {
+      LazyList<T> reversed = empty();
+      for (LazyList<T> current = list; !current.isEmpty(); current = current.rest()) {
+        reversed = cons(current.first(), reversed);
+      }
+      return reversed.force();
+    });
+  }
+
+  // the first list followed by the second, one cell at a time
+  static <T> LazyList<T> append(LazyList<T> first, LazyList<T> second) {
+    return new LazyList<T>(() -> {
+      LazyCell<T> c = first.force();
+      if (c == NONE) {
+        return second.force();
+      }
+      return new LazyCell<T>(c.first, append(c.rest, second));
+    });
+  }
+}
+
+// To represent one computed cell of a LazyList
+class LazyCell<T> {
+  final T first;
+  final LazyList<T> rest;
+
+  // Initial constructor
+  LazyCell(T first, LazyList<T> rest) {
+    this.first = first;
+    this.rest = rest;
+  }
+}
+
+// To represent a deque that threads share by swapping in new versions of a
+// BankersDeque: writers retry a compare-and-set, and a reader's snapshot is
+// just the current version, which never changes underneath it
+class SnapshotDeque<T> implements IDeque<T> {
+  AtomicReference<BankersDeque<T>> current;
+
+  // Initial constructor
+  SnapshotDeque() {
+    this.current = new AtomicReference<BankersDeque<T>>(new BankersDeque<T>());
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.current ...     -- AtomicReference<BankersDeque<T>>
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtHead(T) ...           -- void
+   *  ... this.addAtTail(T) ...           -- void
+   *  ... this.removeFromHead() ...       -- T
+   *  ... this.removeFromTail() ...       -- T
+   *  ... this.findData(IPred<T>) ...     -- T
+   *  ... this.snapshot() ...             -- BankersDeque<T>
+   * 
+   */
+
+  // how many items are in the current version
+  // method template: same as class template
+  public int size() {
+    return this.current.get().size();
+  }
+
+  // adds the given item at the head
+  // method template: same as class template
+  public void addAtHead(T t) {
+    while (true) {
+      BankersDeque<T> old = this.current.get();
+      if (this.current.compareAndSet(old, old.addAtHead(t))) {
+        return;
+      }
+    }
+  }
+
+  // adds the given item at the tail
+  // method template: same as class template
+  public void addAtTail(T t) {
+    while (true) {
+      BankersDeque<T> old = this.current.get();
+      if (this.current.compareAndSet(old, old.addAtTail(t))) {
+        return;
+      }
+    }
+  }
+
+  // removes and produces the item at the head
+  // method template: same as class template
+  public T removeFromHead() {
+    while (true) {
+      BankersDeque<T> old = this.current.get();
+      if (old.size() == 0) {
+        throw new RuntimeException("Cannot remove from an empty deque");
+      }
+      T t = old.peekHead();
+      if (this.current.compareAndSet(old, old.dropHead())) {
+        return t;
+      }
+    }
+  }
+
+  // removes and produces the item at the tail
+  // method template: same as class template
+  public T removeFromTail() {
+    while (true) {
+      BankersDeque<T> old = this.current.get();
+      if (old.size() == 0) {
+        throw new RuntimeException("Cannot remove from an empty deque");
+      }
+      T t = old.peekTail();
+      if (this.current.compareAndSet(old, old.dropTail())) {
+        return t;
+      }
+    }
+  }
+
+  // produces the first item of the current version that satisfies the given
+  // predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    return this.current.get().findData(pred);
+  }
+
+  // the current version, which stays the same however the deque changes later
+  // method template: same as class template
+  BankersDeque<T> snapshot() {
+    return this.current.get();
+  }
+}
+
+// To represent a double-ended queue as an unrolled linked list: each link
+// holds up to CHUNK items side by side in an array, so a find reads them in
+// order instead of following a pointer per item. Items never move within
+// their chunk, so an UnrolledHandle stays valid until its item is removed;
+// removing through a handle leaves a hole that the scans skip, and a chunk
+// with nothing left in it is unlinked. Every slot keeps a stamp that goes up
+// whenever its item is removed, so a handle whose slot has since been given
+// to a newer item no longer matches it.
+class UnrolledDeque<T> implements IDeque<T>, Iterable<T> {
+  static final int CHUNK = 64;
+  static final Object HOLE = new Object();
+  UnrolledChunk<T> head;
+  UnrolledChunk<T> tail;
+  int count;
+
+  // Initial constructor: one empty chunk, with room on both sides
+  UnrolledDeque() {
+    this.head = new UnrolledChunk<T>(this, CHUNK / 2);
+    this.tail = this.head;
+    this.count = 0;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.head ...      -- UnrolledChunk<T>
+   *  ... this.tail ...      -- UnrolledChunk<T>
+   *  ... this.count ...     -- int
+   *  
+   * Methods:
+   *  ... this.size() ...                     -- int
+   *  ... this.addAtHead(T) ...               -- void
+   *  ... this.addAtTail(T) ...               -- void
+   *  ... this.removeFromHead() ...           -- T
+   *  ... this.removeFromTail() ...           -- T
+   *  ... this.find(IPred<T>) ...             -- UnrolledHandle<T>
+   *  ... this.findData(IPred<T>) ...         -- T
+   *  ... this.removeNode(UnrolledHandle<T>) ...   -- void
+   *  ... this.iterator() ...                 -- Iterator<T>
+   *  ... this.take(UnrolledChunk<T>, int) ...     -- T
+   *  ... this.trim(UnrolledChunk<T>) ...     -- void
+   * 
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  public int size() {
+    return this.count;
+  }
+
+  // adds the given item at the head, starting a new chunk if the head chunk
+  // has no room before its first item
+  // method template: same as class template
+  public void addAtHead(T t) {
+    if (this.head.start == 0) {
+      UnrolledChunk<T> chunk = new UnrolledChunk<T>(this, CHUNK);
+      chunk.next = this.head;
+      this.head.prev = chunk;
+      this.head = chunk;
+    }
+    this.head.start -= 1;
+    this.head.items[this.head.start] = t;
+    this.head.live += 1;
+    this.count += 1;
+  }
+
+  // adds the given item at the tail, starting a new chunk if the tail chunk
+  // has no room after its last item
+  // method template: same as class template
+  public void addAtTail(T t) {
+    if (this.tail.end == CHUNK) {
+      UnrolledChunk<T> chunk = new UnrolledChunk<T>(this, 0);
+      chunk.prev = this.tail;
+      this.tail.next = chunk;
+      this.tail = chunk;
+    }
+    this.tail.items[this.tail.end] = t;
+    this.tail.end += 1;
+    this.tail.live += 1;
+    this.count += 1;
+  }
+
+  // removes and produces the item at the head
+  // method template: same as class template
+  public T removeFromHead() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    return this.take(this.head, this.head.start);
+  }
+
+  // removes and produces the item at the tail
+  // method template: same as class template
+  public T removeFromTail() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    return this.take(this.tail, this.tail.end - 1);
+  }
+
+  // produces a handle to the first item that satisfies the given predicate,
+  // or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  @SuppressWarnings("unchecked")
+  UnrolledHandle<T> find(IPred<T> pred) {
+    for (UnrolledChunk<T> chunk = this.head; chunk != null; chunk = chunk.next) {
+      Object[] items = chunk.items;
+      for (int i = chunk.start; i < chunk.end; i += 1) {
+        Object o = items[i];
+        if (o != HOLE && pred.apply((T) o)) {
+          return new UnrolledHandle<T>(chunk, i, chunk.stamps[i]);
+        }
+      }
+    }
+    return null;
+  }
+
+  // produces the first item that satisfies the given predicate, or null if
+  // none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    UnrolledHandle<T> handle = this.find(pred);
+    if (handle == null) {
+      return null;
+    }
+    return handle.value();
+  }
+
+  // removes the item the given handle refers to, if it is still in this deque
+  /* FIELDS OF PARAMETERS - 
+   * handle.chunk - UnrolledChunk<T>
+   * handle.slot - int
+   * handle.stamp - int
+   * 
+   * METHODS OF PARAMETERS - 
+   * handle.isCurrent() - boolean
+   */
+  void removeNode(UnrolledHandle<T> handle) {
+    if (handle.chunk.owner == this && handle.isCurrent()) {
+      this.take(handle.chunk, handle.slot);
+    }
+  }
+
+  // returns the iterator of this deque, from head to tail
+  @SuppressWarnings("unchecked")
+  public Iterator<T> iterator() {
+    ArrayList<T> items = new ArrayList<T>(this.count);
+    for (UnrolledChunk<T> chunk = this.head; chunk != null; chunk = chunk.next) {
+      for (int i = chunk.start; i < chunk.end; i += 1) {
+        if (chunk.items[i] != HOLE) {
+          items.add((T) chunk.items[i]);
+        }
+      }
+    }
+    return items.iterator();
+  }
+
+  // removes and produces the item in the given slot of the given chunk
+  // method template: same as class template
+  @SuppressWarnings("unchecked")
+  T take(UnrolledChunk<T> chunk, int slot) {
+    T t = (T) chunk.items[slot];
+    chunk.items[slot] = HOLE;
+    chunk.stamps[slot] += 1;
+    chunk.live -= 1;
+    this.count -= 1;
+    this.trim(chunk);
+    return t;
+  }
+
+  // EFFECT: clears the holes at either end of the given chunk, and unlinks it
+  // if it is empty and not the only chunk
+  // method template: same as class template
+  void trim(UnrolledChunk<T> chunk) {
+    while (chunk.start < chunk.end && chunk.items[chunk.start] == HOLE) {
+      chunk.items[chunk.start] = null;
+      chunk.start += 1;
+    }
+    while (chunk.end > chunk.start && chunk.items[chunk.end - 1] == HOLE) {
+      chunk.end -= 1;
+      chunk.items[chunk.end] = null;
+    }
+    if (chunk.live > 0) {
+      return;
+    }
+    if (this.head == this.tail) {
+      chunk.start = CHUNK / 2;
+      chunk.end = CHUNK / 2;
+      return;
+    }
+    if (chunk.prev == null) {
+      this.head = chunk.next;
+    }
+    else {
+      chunk.prev.next = chunk.next;
+    }
+    if (chunk.next == null) {
+      this.tail = chunk.prev;
+    }
+    else {
+      chunk.next.prev = chunk.prev;
+    }
+    chunk.next = null;
+    chunk.prev = null;
+    chunk.owner = null;
+  }
+}
+
+// To represent one link of an UnrolledDeque: its items are in
+// items[start..end), where removed ones in the middle are UnrolledDeque.HOLE,
+// and stamps[i] counts the items that have been removed from slot i
+class UnrolledChunk<T> {
+  Object[] items;
+  int[] stamps;
+  int start;
+  int end;
+  int live;
+  UnrolledChunk<T> next;
+  UnrolledChunk<T> prev;
+  UnrolledDeque<T> owner;
+
+  // Constructor: an empty chunk whose items will grow out from the given slot
+  UnrolledChunk(UnrolledDeque<T> owner, int at) {
+    this.items = new Object[UnrolledDeque.CHUNK];
+    this.stamps = new int[UnrolledDeque.CHUNK];
+    this.start = at;
+    this.end = at;
+    this.live = 0;
+    this.next = null;
+    this.prev = null;
+    this.owner = owner;
+  }
+}
+
+// To represent a handle to one item of an UnrolledDeque, which was in the
+// given slot when that slot had the given stamp
+class UnrolledHandle<T> {
+  UnrolledChunk<T> chunk;
+  int slot;
+  int stamp;
+
+  // Constructor
+  UnrolledHandle(UnrolledChunk<T> chunk, int slot, int stamp) {
+    this.chunk = chunk;
+    this.slot = slot;
+    this.stamp = stamp;
+  }
+
+  // is the item this handle refers to still in its slot?
+  boolean isCurrent() {
+    return this.chunk.stamps[this.slot] == this.stamp;
+  }
+
+  // the item this handle refers to, or null if it has been removed
+  @SuppressWarnings("unchecked")
+  T value() {
+    if (!this.isCurrent()) {
+      return null;
+    }
+    return (T) this.chunk.items[this.slot];
+  }
+}
+
+// To represent a double-ended queue stored in a growable circular array
+class RingDeque<T> implements IDeque<T> {
+  Object[] items;
+  int head;
+  int count;
+
+  // Initial constructor
+  RingDeque() {
+    this(16);
+  }
+
+  // Convenience constructor: starts with room for at least the given number of items
+  RingDeque(int capacity) {
+    this.items = new Object[ringLength(capacity)];
+    this.head = 0;
+    this.count = 0;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.items ...     -- Object[]
+   *  ... this.head ...      -- int
+   *  ... this.count ...     -- int
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtHead(T) ...           -- void
+   *  ... this.addAtTail(T) ...           -- void
+   *  ... this.findData(IPred<T>) ...     -- T
+   *  ... this.removeFromHead() ...       -- T
+   *  ... this.removeFromTail() ...       -- T
+   *  ... this.mask() ...                 -- int
+   *  ... this.ensureRoom() ...           -- void
+   *  ... RingDeque.ringLength(int) ...   -- int
+   *  
+   * Note: the array length is always a power of two, so an index
+   * wraps around by masking it with (length - 1)
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  public int size() {
+    return this.count;
+  }
+
+  // adds the given item at the head of the deque
+  // method template: same as class template
+  public void addAtHead(T t) {
+    this.ensureRoom();
+    this.head = (this.head - 1) & this.mask();
+    this.items[this.head] = t;
+    this.count += 1;
+  }
+
+  // adds the given item at the tail of the deque
+  // method template: same as class template
+  public void addAtTail(T t) {
+    this.ensureRoom();
+    this.items[(this.head + this.count) & this.mask()] = t;
+    this.count += 1;
+  }
+
+  // removes and produces the item at the head of the deque
+  // method template: same as class template
+  @SuppressWarnings("unchecked")
+  public T removeFromHead() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      T t = (T) this.items[this.head];
+      this.items[this.head] = null;
+      this.head = (this.head + 1) & this.mask();
+      this.count -= 1;
+      return t;
+    }
+  }
+
+  // removes and produces the item at the tail of the deque
+  // method template: same as class template
+  @SuppressWarnings("unchecked")
+  public T removeFromTail() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      int last = (this.head + this.count - 1) & this.mask();
+      T t = (T) this.items[last];
+      this.items[last] = null;
+      this.count -= 1;
+      return t;
+    }
+  }
+
+  // produces the first item that satisfies the given predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  @SuppressWarnings("unchecked")
+  public T findData(IPred<T> pred) {
+    for (int i = 0; i < this.count; i += 1) {
+      T t = (T) this.items[(this.head + i) & this.mask()];
+      if (pred.apply(t)) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  // the mask that wraps an index around the array
+  // method template: same as class template
+  int mask() {
+    return this.items.length - 1;
+  }
+
+  // doubles the array, keeping the items in order from index 0, when it is full
+  // method template: same as class template
+  void ensureRoom() {
+    if (this.count == this.items.length) {
+      Object[] bigger = new Object[this.items.length * 2];
+      for (int i = 0; i < this.count; i += 1) {
+        bigger[i] = this.items[(this.head + i) & this.mask()];
+      }
+      this.items = bigger;
+      this.head = 0;
+    }
+  }
+
+  // the smallest power of two that is at least the given capacity; the
+  // capacity must be from 1 to 2^30, so that the doubling cannot overflow
+  static int ringLength(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    if (capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+    }
+    int length = 1;
+    while (length < capacity) {
+      length *= 2;
+    }
+    return length;
+  }
+}
+
+// To represent a double-ended queue of ints stored in a growable circular array,
+// without boxing
+class IntDeque {
+  int[] items;
+  int head;
+  int count;
+
+  // Initial constructor
+  IntDeque() {
+    this(16);
+  }
+
+  // Convenience constructor: starts with room for at least the given number of items
+  IntDeque(int capacity) {
+    this.items = new int[RingDeque.ringLength(capacity)];
+    this.head = 0;
+    this.count = 0;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.items ...     -- int[]
+   *  ... this.head ...      -- int
+   *  ... this.count ...     -- int
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtHead(int) ...        -- void
+   *  ... this.addAtTail(int) ...        -- void
+   *  ... this.find(IntPred) ...          -- int
+   *  ... this.get(int) ...               -- int
+   *  ... this.removeFromHead() ...       -- int
+   *  ... this.removeFromTail() ...       -- int
+   *  ... this.mask() ...                 -- int
+   *  ... this.ensureRoom() ...           -- void
+   * 
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  int size() {
+    return this.count;
+  }
+
+  // adds the given item at the head of the deque
+  // method template: same as class template
+  void addAtHead(int n) {
+    this.ensureRoom();
+    this.head = (this.head - 1) & this.mask();
+    this.items[this.head] = n;
+    this.count += 1;
+  }
+
+  // adds the given item at the tail of the deque
+  // method template: same as class template
+  void addAtTail(int n) {
+    this.ensureRoom();
+    this.items[(this.head + this.count) & this.mask()] = n;
+    this.count += 1;
+  }
+
+  // produces the position (counted from the head) of the first item that
+  // satisfies the given predicate, or -1 if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(int) - boolean
+   */
+  int find(IntPred pred) {
+    for (int i = 0; i < this.count; i += 1) {
+      if (pred.apply(this.items[(this.head + i) & this.mask()])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // produces the item at the given position, counted from the head
+  // method template: same as class template
+  int get(int index) {
+    if (index < 0 || index >= this.count) {
+      throw new IndexOutOfBoundsException("No item at position " + index);
+    }
+    return this.items[(this.head + index) & this.mask()];
+  }
+
+  // removes and produces the item at the head of the deque
+  // method template: same as class template
+  int removeFromHead() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      int n = this.items[this.head];
+      this.head = (this.head + 1) & this.mask();
+      this.count -= 1;
+      return n;
+    }
+  }
+
+  // removes and produces the item at the tail of the deque
+  // method template: same as class template
+  int removeFromTail() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      this.count -= 1;
+      return this.items[(this.head + this.count) & this.mask()];
+    }
+  }
+
+  // the mask that wraps an index around the array
+  // method template: same as class template
+  int mask() {
+    return this.items.length - 1;
+  }
+
+  // doubles the array, keeping the items in order from index 0, when it is full
+  // method template: same as class template
+  void ensureRoom() {
+    if (this.count == this.items.length) {
+      int[] bigger = new int[this.items.length * 2];
+      for (int i = 0; i < this.count; i += 1) {
+        bigger[i] = this.items[(this.head + i) & this.mask()];
+      }
+      this.items = bigger;
+      this.head = 0;
+    }
+  }
+}
+
+// To represent a double-ended queue of longs stored in a growable circular array,
+// without boxing
+class LongDeque {
+  long[] items;
+  int head;
+  int count;
+
+  // Initial constructor
+  LongDeque() {
+    this(16);
+  }
+
+  // Convenience constructor: starts with room for at least the given number of items
+  LongDeque(int capacity) {
+    this.items = new long[RingDeque.ringLength(capacity)];
+    this.head = 0;
+    this.count = 0;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.items ...     -- long[]
+   *  ... this.head ...      -- int
+   *  ... this.count ...     -- int
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtHead(long) ...        -- void
+   *  ... this.addAtTail(long) ...        -- void
+   *  ... this.find(LongPred) ...          -- int
+   *  ... this.get(int) ...               -- long
+   *  ... this.removeFromHead() ...       -- long
+   *  ... this.removeFromTail() ...       -- long
+   *  ... this.mask() ...                 -- int
+   *  ... this.ensureRoom() ...           -- void
+   * 
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  int size() {
+    return this.count;
+  }
+
+  // adds the given item at the head of the deque
+  // method template: same as class template
+  void addAtHead(long n) {
+    this.ensureRoom();
+    this.head = (this.head - 1) & this.mask();
+    this.items[this.head] = n;
+    this.count += 1;
+  }
+
+  // adds the given item at the tail of the deque
+  // method template: same as class template
+  void addAtTail(long n) {
+    this.ensureRoom();
+    this.items[(this.head + this.count) & this.mask()] = n;
+    this.count += 1;
+  }
+
+  // produces the position (counted from the head) of the first item that
+  // satisfies the given predicate, or -1 if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(long) - boolean
+   */
+  int find(LongPred pred) {
+    for (int i = 0; i < this.count; i += 1) {
+      if (pred.apply(this.items[(this.head + i) & this.mask()])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // produces the item at the given position, counted from the head
+  // method template: same as class template
+  long get(int index) {
+    if (index < 0 || index >= this.count) {
+      throw new IndexOutOfBoundsException("No item at position " + index);
+    }
+    return this.items[(this.head + index) & this.mask()];
+  }
+
+  // removes and produces the item at the head of the deque
+  // method template: same as class template
+  long removeFromHead() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      long n = this.items[this.head];
+      this.head = (this.head + 1) & this.mask();
+      this.count -= 1;
+      return n;
+    }
+  }
+
+  // removes and produces the item at the tail of the deque
+  // method template: same as class template
+  long removeFromTail() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      this.count -= 1;
+      return this.items[(this.head + this.count) & this.mask()];
+    }
+  }
+
+  // the mask that wraps an index around the array
+  // method template: same as class template
+  int mask() {
+    return this.items.length - 1;
+  }
+
+  // doubles the array, keeping the items in order from index 0, when it is full
+  // method template: same as class template
+  void ensureRoom() {
+    if (this.count == this.items.length) {
+      long[] bigger = new long[this.items.length * 2];
+      for (int i = 0; i < this.count; i += 1) {
+        bigger[i] = this.items[(this.head + i) & this.mask()];
+      }
+      this.items = bigger;
+      this.head = 0;
+    }
+  }
+}
+
+// To represent a double-ended queue of doubles stored in a growable circular array,
+// without boxing
+class DoubleDeque {
+  double[] items;
+  int head;
+  int count;
+
+  // Initial constructor
+  DoubleDeque() {
+    this(16);
+  }
+
+  // Convenience constructor: starts with room for at least the given number of items
+  DoubleDeque(int capacity) {
+    this.items = new double[RingDeque.ringLength(capacity)];
+    this.head = 0;
+    this.count = 0;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.items ...     -- double[]
+   *  ... this.head ...      -- int
+   *  ... this.count ...     -- int
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtHead(double) ...        -- void
+   *  ... this.addAtTail(double) ...        -- void
+   *  ... this.find(DoublePred) ...          -- int
+   *  ... this.get(int) ...               -- double
+   *  ... this.removeFromHead() ...       -- double
+   *  ... this.removeFromTail() ...       -- double
+   *  ... this.mask() ...                 -- int
+   *  ... this.ensureRoom() ...           -- void
+   * 
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  int size() {
+    return this.count;
+  }
+
+  // adds the given item at the head of the deque
+  // method template: same as class template
+  void addAtHead(double n) {
+    this.ensureRoom();
+    this.head = (this.head - 1) & this.mask();
+    this.items[this.head] = n;
+    this.count += 1;
+  }
+
+  // adds the given item at the tail of the deque
+  // method template: same as class template
+  void addAtTail(double n) {
+    this.ensureRoom();
+    this.items[(this.head + this.count) & this.mask()] = n;
+    this.count += 1;
+  }
+
+  // produces the position (counted from the head) of the first item that
+  // satisfies the given predicate, or -1 if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(double) - boolean
+   */
+  int find(DoublePred pred) {
+    for (int i = 0; i < this.count; i += 1) {
+      if (pred.apply(this.items[(this.head + i) & this.mask()])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // produces the item at the given position, counted from the head
+  // method template: same as class template
+  double get(int index) {
+    if (index < 0 || index >= this.count) {
+      throw new IndexOutOfBoundsException("No item at position " + index);
+    }
+    return this.items[(this.head + index) & this.mask()];
+  }
+
+  // removes and produces the item at the head of the deque
+  // method template: same as class template
+  double removeFromHead() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      double n = this.items[this.head];
+      this.head = (this.head + 1) & this.mask();
+      this.count -= 1;
+      return n;
+    }
+  }
+
+  // removes and produces the item at the tail of the deque
+  // method template: same as class template
+  double removeFromTail() {
+    if (this.count == 0) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    else {
+      this.count -= 1;
+      return this.items[(this.head + this.count) & this.mask()];
+    }
+  }
+
+  // the mask that wraps an index around the array
+  // method template: same as class template
+  int mask() {
+    return this.items.length - 1;
+  }
+
+  // doubles the array, keeping the items in order from index 0, when it is full
+  // method template: same as class template
+  void ensureRoom() {
+    if (this.count == this.items.length) {
+      double[] bigger = new double[this.items.length * 2];
+      for (int i = 0; i < this.count; i += 1) {
+        bigger[i] = this.items[(this.head + i) & this.mask()];
+      }
+      this.items = bigger;
+      this.head = 0;
+    }
+  }
+}
+
+// To represent a deque that many threads can share without locks: producers
+// add at the tail and consumers remove from the head, and every link is
+// changed with a compare-and-set (the Michael-Scott queue)
+class ConcurrentDeque<T> {
+  AtomicReference<CNode<T>> head;
+  AtomicReference<CNode<T>> tail;
+  AtomicInteger count;
+
+  // Initial constructor: head and tail both start at a dataless sentinel
+  ConcurrentDeque() {
+    CNode<T> sentinel = new CNode<T>(null);
+    this.head = new AtomicReference<CNode<T>>(sentinel);
+    this.tail = new AtomicReference<CNode<T>>(sentinel);
+    this.count = new AtomicInteger(0);
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.head ...      -- AtomicReference<CNode<T>>
+   *  ... this.tail ...      -- AtomicReference<CNode<T>>
+   *  ... this.count ...     -- AtomicInteger
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtTail(T) ...           -- void
+   *  ... this.poll() ...                 -- T
+   *  ... this.removeFromHead() ...       -- T
+   *  ... this.findData(IPred<T>) ...     -- T
+   * 
+   * Note: head always points at a dataless node; the first item lives in
+   * head.next. tail points at the last node or, briefly, the one before it,
+   * and any thread that sees it lagging swings it forward.
+   */
+
+  // how many items are in this deque; exact once all threads are done
+  // method template: same as class template
+  int size() {
+    return this.count.get();
+  }
+
+  // adds the given item at the tail of the deque
+  // method template: same as class template
+  void addAtTail(T t) {
+    if (t == null) {
+      throw new IllegalArgumentException("Cannot add null to a concurrent deque");
+    }
+    CNode<T> node = new CNode<T>(t);
+    while (true) {
+      CNode<T> last = this.tail.get();
+      CNode<T> after = last.next.get();
+      if (last == this.tail.get()) {
+        if (after == null) {
+          if (last.next.compareAndSet(null, node)) {
+            this.tail.compareAndSet(last, node);
+            this.count.incrementAndGet();
+            return;
+          }
+        }
+        else {
+          this.tail.compareAndSet(last, after);
+        }
+      }
+    }
+  }
+
+  // removes and produces the item at the head of the deque, or null if it is empty
+  // method template: same as class template
+  T poll() {
+    while (true) {
+      CNode<T> first = this.head.get();
+      CNode<T> last = this.tail.get();
+      CNode<T> after = first.next.get();
+      if (first == this.head.get()) {
+        if (first == last) {
+          if (after == null) {
+            return null;
+          }
+          this.tail.compareAndSet(last, after);
+        }
+        else {
+          T t = after.data;
+          if (this.head.compareAndSet(first, after)) {
+            after.data = null;
+            this.count.decrementAndGet();
+            return t;
+          }
+        }
+      }
+    }
+  }
+
+  // removes and produces the item at the head of the deque
+  // method template: same as class template
+  T removeFromHead() {
+    T t = this.poll();
+    if (t == null) {
+      throw new RuntimeException("Cannot remove from an empty deque");
+    }
+    return t;
+  }
+
+  // produces the first item that satisfies the given predicate, or null if
+  // none does; items added or removed during the walk may or may not be seen
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  T findData(IPred<T> pred) {
+    CNode<T> current = this.head.get().next.get();
+    while (current != null) {
+      T t = current.data;
+      if (t != null && pred.apply(t)) {
+        return t;
+      }
+      current = current.next.get();
+    }
+    return null;
+  }
+}
+
+// To represent a node of a ConcurrentDeque
+class CNode<T> {
+  volatile T data;
+  AtomicReference<CNode<T>> next;
+
+  // Initial constructor
+  CNode(T data) {
+    this.data = data;
+    this.next = new AtomicReference<CNode<T>>(null);
+  }
+}
+
+// To represent a Chase-Lev work-stealing deque: one owner thread adds and
+// removes at the tail without contention, while any other thread may steal
+// from the head with a compare-and-set
+class WorkStealingDeque<T> {
+  volatile AtomicReferenceArray<T> items;
+  AtomicLong top;
+  volatile long bottom;
+  long cleared;
+
+  // Initial constructor
+  WorkStealingDeque() {
+    this.items = new AtomicReferenceArray<T>(32);
+    this.top = new AtomicLong(0);
+    this.bottom = 0;
+    this.cleared = 0;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.items ...     -- AtomicReferenceArray<T>
+   *  ... this.top ...       -- AtomicLong
+   *  ... this.bottom ...    -- long
+   *  ... this.cleared ...   -- long, every slot below it has been emptied
+   *  
+   * Methods:
+   *  ... this.size() ...                 -- int
+   *  ... this.addAtTail(T) ...           -- void
+   *  ... this.removeFromTail() ...       -- T
+   *  ... this.steal() ...                -- T
+   *  ... this.grow(long, long) ...       -- AtomicReferenceArray<T>
+   *  ... this.clearTo(AtomicReferenceArray<T>, long) ...   -- void
+   * 
+   * Note: top and bottom only ever grow (apart from the owner briefly taking
+   * back bottom) and are masked into the power-of-two array, so a thief's slot
+   * is never reused before its compare-and-set on top has settled who owns it.
+   * Only the owner writes slots: it empties the slot of every item it takes,
+   * and the slots of stolen items the next time it adds or finds the deque
+   * empty, before any of them can be reused.
+   */
+
+  // roughly how many items are in this deque
+  // method template: same as class template
+  int size() {
+    return (int) Math.max(0, this.bottom - this.top.get());
+  }
+
+  // adds the given item at the tail; only the owner may call this
+  // method template: same as class template
+  void addAtTail(T t) {
+    long b = this.bottom;
+    long tp = this.top.get();
+    AtomicReferenceArray<T> a = this.items;
+    if (b - tp >= a.length() - 1) {
+      a = this.grow(tp, b);
+      this.cleared = tp;
+    }
+    this.clearTo(a, tp);
+    a.set((int) (b & (a.length() - 1)), t);
+    this.bottom = b + 1;
+  }
+
+  // removes and produces the item at the tail, or null if there is none;
+  // only the owner may call this
+  // method template: same as class template
+  T removeFromTail() {
+    long b = this.bottom - 1;
+    AtomicReferenceArray<T> a = this.items;
+    this.bottom = b;
+    long tp = this.top.get();
+    if (b < tp) {
+      this.bottom = tp;
+      this.clearTo(a, tp);
+      return null;
+    }
+    int slot = (int) (b & (a.length() - 1));
+    T t = a.get(slot);
+    if (b > tp) {
+      a.set(slot, null);
+      return t;
+    }
+    // the last item: race any thief for it; either way it has been read
+    if (!this.top.compareAndSet(tp, tp + 1)) {
+      t = null;
+    }
+    this.clearTo(a, tp + 1);
+    this.bottom = tp + 1;
+    return t;
+  }
+
+  // removes and produces the item at the head, or null if there is none or
+  // another thread took it first; any thread may call this
+  // method template: same as class template
+  T steal() {
+    long tp = this.top.get();
+    long b = this.bottom;
+    if (tp >= b) {
+      return null;
+    }
+    AtomicReferenceArray<T> a = this.items;
+    T t = a.get((int) (tp & (a.length() - 1)));
+    if (this.top.compareAndSet(tp, tp + 1)) {
+      return t;
+    }
+    return null;
+  }
+
+  // copies the items from top up to bottom into an array twice the size
+  // and publishes it
+  // method template: same as class template
+  AtomicReferenceArray<T> grow(long tp, long b) {
+    AtomicReferenceArray<T> old = this.items;
+    AtomicReferenceArray<T> bigger = new AtomicReferenceArray<T>(old.length() * 2);
+    for (long i = tp; i < b; i += 1) {
+      bigger.set((int) (i & (bigger.length() - 1)), old.get((int) (i & (old.length() - 1))));
+    }
+    this.items = bigger;
+    return bigger;
+  }
+
+  // EFFECT: empties the slots of the items taken from below the given top
+  // since the last time; only the owner may call this
+  // method template: same as class template
+  void clearTo(AtomicReferenceArray<T> a, long tp) {
+    for (long i = Math.max(this.cleared, tp - a.length()); i < tp; i += 1) {
+      a.set((int) (i & (a.length() - 1)), null);
+    }
+    this.cleared = Math.max(this.cleared, tp);
+  }
+}
+
+// To represent a task that a StealPool runs, and that may fork subtasks
+abstract class StealTask<R> {
+  volatile boolean done;
+  R result;
+  Throwable failure;
+  volatile Thread waiter;
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.done ...      -- boolean
+   *  ... this.result ...    -- R
+   *  ... this.failure ...   -- Throwable, or null if compute returned
+   *  ... this.waiter ...    -- Thread, parked in StealPool.invoke, or null
+   *  
+   * Methods:
+   *  ... this.compute() ...     -- R
+   *  ... this.run() ...         -- void
+   *  ... this.fork() ...        -- StealTask<R>
+   *  ... this.join() ...        -- R
+   *  ... this.outcome() ...     -- R
+   * 
+   */
+
+  // the work of this task
+  abstract R compute();
+
+  // computes and publishes the result of this task, or what it threw; the
+  // task is done either way, and a thread waiting for it is woken
+  // method template: same as class template
+  void run() {
+    try {
+      this.result = this.compute();
+    }
+    catch (Throwable e) {
+      this.failure = e;
+    }
+    finally {
+      this.done = true;
+      Thread w = this.waiter;
+      if (w != null) {
+        LockSupport.unpark(w);
+      }
+    }
+  }
+
+  // schedules this task on the current worker's deque
+  // method template: same as class template
+  StealTask<R> fork() {
+    if (!(Thread.currentThread() instanceof StealWorker)) {
+      throw new IllegalStateException("Can only fork inside a StealPool");
+    }
+    ((StealWorker) Thread.currentThread()).deque.addAtTail(this);
+    return this;
+  }
+
+  // produces the result of this task, running other tasks until it is done
+  // method template: same as class template
+  R join() {
+    if (!(Thread.currentThread() instanceof StealWorker)) {
+      throw new IllegalStateException("Can only join inside a StealPool");
+    }
+    StealWorker worker = (StealWorker) Thread.currentThread();
+    while (!this.done) {
+      if (!worker.runOne()) {
+        Thread.yield();
+      }
+    }
+    return this.outcome();
+  }
+
+  // produces the result of this finished task, or rethrows what it threw
+  // method template: same as class template
+  R outcome() {
+    if (this.failure instanceof RuntimeException) {
+      throw (RuntimeException) this.failure;
+    }
+    if (this.failure instanceof Error) {
+      throw (Error) this.failure;
+    }
+    if (this.failure != null) {
+      throw new RuntimeException(this.failure);
+    }
+    return this.result;
+  }
+}
+
+// To represent one worker thread of a StealPool, with its own deque
+class StealWorker extends Thread {
+  StealPool pool;
+  WorkStealingDeque<StealTask<?>> deque;
+  Random rand;
+
+  // Initial constructor
+  StealWorker(StealPool pool, int id) {
+    super("steal-worker-" + id);
+    this.pool = pool;
+    this.deque = new WorkStealingDeque<StealTask<?>>();
+    this.rand = new Random(id);
+    this.setDaemon(true);
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.pool ...      -- StealPool
+   *  ... this.deque ...     -- WorkStealingDeque<StealTask<?>>
+   *  ... this.rand ...      -- Random
+   *  
+   * Methods:
+   *  ... this.run() ...         -- void
+   *  ... this.runOne() ...      -- boolean
+   * 
+   */
+
+  // runs tasks until the pool shuts down, then runs whatever was submitted
+  // before that, so no invoke is left waiting
+  // method template: same as class template
+  public void run() {
+    while (!this.pool.shutdown) {
+      if (!this.runOne()) {
+        LockSupport.parkNanos(20000);
+      }
+    }
+    for (StealTask<?> task = this.pool.submitted.poll(); task != null;
+        task = this.pool.submitted.poll()) {
+      task.run();
+    }
+  }
+
+  // runs one task from this worker's own tail, the pool's submissions, or
+  // another worker's head, and produces whether it found one
+  // method template: same as class template
+  boolean runOne() {
+    StealTask<?> task = this.deque.removeFromTail();
+    if (task == null) {
+      task = this.pool.submitted.poll();
+    }
+    StealWorker[] workers = this.pool.workers;
+    int start = this.rand.nextInt(workers.length);
+    for (int i = 0; task == null && i < workers.length; i += 1) {
+      StealWorker victim = workers[(start + i) % workers.length];
+      if (victim != this) {
+        task = victim.deque.steal();
+      }
+    }
+    if (task == null) {
+      return false;
+    }
+    task.run();
+    return true;
+  }
+}
+
+// To represent a fork-join scheduler whose workers balance load by stealing
+class StealPool {
+  StealWorker[] workers;
+  ConcurrentDeque<StealTask<?>> submitted;
+  volatile boolean shutdown;
+
+  // Initial constructor: one worker per core
+  StealPool() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  // Convenience constructor: the given number of workers
+  StealPool(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("A pool needs at least one worker");
+    }
+    this.submitted = new ConcurrentDeque<StealTask<?>>();
+    this.shutdown = false;
+    this.workers = new StealWorker[threads];
+    for (int i = 0; i < threads; i += 1) {
+      this.workers[i] = new StealWorker(this, i);
+    }
+    for (StealWorker w : this.workers) {
+      w.start();
+    }
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.workers ...       -- StealWorker[]
+   *  ... this.submitted ...     -- ConcurrentDeque<StealTask<?>>
+   *  ... this.shutdown ...      -- boolean
+   *  
+   * Methods:
+   *  ... this.invoke(StealTask<R>) ...   -- R
+   *  ... this.submit(StealTask<?>) ...   -- void
+   *  ... this.close() ...                -- void
+   * 
+   * Note: submit and close hold this pool's lock, so every task is either
+   * submitted before shutdown is set, and run by a worker's final drain, or
+   * refused.
+   */
+
+  // runs the given task on this pool and waits for its result; if the task
+  // threw, so does this
+  // method template: same as class template
+  <R> R invoke(StealTask<R> task) {
+    task.waiter = Thread.currentThread();
+    this.submit(task);
+    while (!task.done) {
+      LockSupport.park(task);
+    }
+    return task.outcome();
+  }
+
+  // EFFECT: hands the given task to the workers, unless the pool is shut down
+  // method template: same as class template
+  synchronized void submit(StealTask<?> task) {
+    if (this.shutdown) {
+      throw new IllegalStateException("The pool has been shut down");
+    }
+    this.submitted.addAtTail(task);
+  }
+
+  // stops every worker once it finishes its current task and whatever was
+  // submitted before this
+  // method template: same as class template
+  synchronized void close() {
+    this.shutdown = true;
+  }
+}
+
+// To represent a deque with a fixed capacity that producers and consumers
+// on different threads can share: put waits for room, take waits for an item
+class BoundedDeque<T> implements IDeque<T> {
+  RingDeque<T> items;
+  int capacity;
+  ReentrantLock lock;
+  Condition notEmpty;
+  Condition notFull;
+
+  // Initial constructor
+  BoundedDeque(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.items = new RingDeque<T>(capacity);
+    this.capacity = capacity;
+    this.lock = new ReentrantLock();
+    this.notEmpty = this.lock.newCondition();
+    this.notFull = this.lock.newCondition();
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.items ...         -- RingDeque<T>
+   *  ... this.capacity ...      -- int
+   *  ... this.lock ...          -- ReentrantLock
+   *  ... this.notEmpty ...      -- Condition
+   *  ... this.notFull ...       -- Condition
+   *  
+   * Methods:
+   *  ... this.size() ...                             -- int
+   *  ... this.addAtHead(T) ...                       -- void
+   *  ... this.addAtTail(T) ...                       -- void
+   *  ... this.removeFromHead() ...                   -- T
+   *  ... this.removeFromTail() ...                   -- T
+   *  ... this.findData(IPred<T>) ...                 -- T
+   *  ... this.put(T) ...                             -- void
+   *  ... this.put(T, long, TimeUnit) ...             -- boolean
+   *  ... this.take() ...                             -- T
+   *  ... this.take(long, TimeUnit) ...               -- T
+   *  ... this.poll() ...                             -- T
+   *  ... this.drainTo(Collection<? super T>, int) ... -- int
+   *  ... this.checkFull() ...                        -- void
+   *  ... this.checkItem(T) ...                       -- void
+   *  ... this.removed(T) ...                         -- T
+   * 
+   * Note: items may not be null, so that poll and a timed take can produce
+   * null to mean that nothing was removed.
+   */
+
+  // how many items are in this deque
+  // method template: same as class template
+  public int size() {
+    this.lock.lock();
+    try {
+      return this.items.size();
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // adds the given item at the head of the deque, without waiting
+  // method template: same as class template
+  public void addAtHead(T t) {
+    this.checkItem(t);
+    this.lock.lock();
+    try {
+      this.checkFull();
+      this.items.addAtHead(t);
+      this.notEmpty.signal();
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // adds the given item at the tail of the deque, without waiting
+  // method template: same as class template
+  public void addAtTail(T t) {
+    this.checkItem(t);
+    this.lock.lock();
+    try {
+      this.checkFull();
+      this.items.addAtTail(t);
+      this.notEmpty.signal();
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // removes and produces the item at the head of the deque, without waiting
+  // method template: same as class template
+  public T removeFromHead() {
+    this.lock.lock();
+    try {
+      return this.removed(this.items.removeFromHead());
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // removes and produces the item at the tail of the deque, without waiting
+  // method template: same as class template
+  public T removeFromTail() {
+    this.lock.lock();
+    try {
+      return this.removed(this.items.removeFromTail());
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // produces the first item that satisfies the given predicate, or null if none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    this.lock.lock();
+    try {
+      return this.items.findData(pred);
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // adds the given item at the tail, waiting as long as it takes for room
+  // method template: same as class template
+  void put(T t) throws InterruptedException {
+    this.checkItem(t);
+    this.lock.lockInterruptibly();
+    try {
+      while (this.items.size() == this.capacity) {
+        this.notFull.await();
+      }
+      this.items.addAtTail(t);
+      this.notEmpty.signal();
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // adds the given item at the tail, waiting at most the given time for room,
+  // and produces whether it was added
+  // method template: same as class template
+  boolean put(T t, long timeout, TimeUnit unit) throws InterruptedException {
+    this.checkItem(t);
+    long nanos = unit.toNanos(timeout);
+    this.lock.lockInterruptibly();
+    try {
+      while (this.items.size() == this.capacity) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = this.notFull.awaitNanos(nanos);
+      }
+      this.items.addAtTail(t);
+      this.notEmpty.signal();
+      return true;
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // removes and produces the item at the head, waiting as long as it takes for one
+  // method template: same as class template
+  T take() throws InterruptedException {
+    this.lock.lockInterruptibly();
+    try {
+      while (this.items.size() == 0) {
+        this.notEmpty.await();
+      }
+      return this.removed(this.items.removeFromHead());
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // removes and produces the item at the head, waiting at most the given time
+  // for one, or produces null if none arrived
+  // method template: same as class template
+  T take(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    this.lock.lockInterruptibly();
+    try {
+      while (this.items.size() == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = this.notEmpty.awaitNanos(nanos);
+      }
+      return this.removed(this.items.removeFromHead());
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // removes and produces the item at the head, or null if the deque is empty
+  // method template: same as class template
+  T poll() {
+    this.lock.lock();
+    try {
+      if (this.items.size() == 0) {
+        return null;
+      }
+      return this.removed(this.items.removeFromHead());
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // moves up to max items from the head into the given collection, holding
+  // the lock once, and produces how many were moved
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * into.add(T) - boolean
+   */
+  int drainTo(Collection<? super T> into, int max) {
+    this.lock.lock();
+    try {
+      int moved = 0;
+      while (moved < max && this.items.size() > 0) {
+        into.add(this.items.removeFromHead());
+        moved += 1;
+      }
+      if (moved > 0) {
+        this.notFull.signalAll();
+      }
+      return moved;
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // throws an exception if there is no room; the lock must be held
+  // method template: same as class template
+  void checkFull() {
+    if (this.items.size() == this.capacity) {
+      throw new RuntimeException("Cannot add to a full deque");
+    }
+  }
+
+  // throws an exception if the given item is null
+  // method template: same as class template
+  void checkItem(T t) {
+    if (t == null) {
+      throw new IllegalArgumentException("Cannot add null to a bounded deque");
+    }
+  }
+
+  // wakes a waiting producer now that the given item has been removed, and
+  // produces it; the lock must be held
+  // method template: same as class template
+  T removed(T t) {
+    this.notFull.signal();
+    return t;
+  }
+}
+
+// To represent an unbounded deque whose consumers wait without holding a
+// thread: takeAsync produces a future that an add later completes, and
+// subscribers receive items through a Flow.Publisher as they ask for them.
+// Waiting takes are served in the order they were made. Futures are always
+// completed after the lock is released, so their callbacks never run under it.
+class AsyncDeque<T> implements IDeque<T>, Flow.Publisher<T> {
+  RingDeque<T> items;
+  RingDeque<CompletableFuture<T>> waiters;
+  ReentrantLock lock;
+
+  // Initial constructor
+  AsyncDeque() {
+    this.items = new RingDeque<T>();
+    this.waiters = new RingDeque<CompletableFuture<T>>();
+    this.lock = new ReentrantLock();
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.items ...       -- RingDeque<T>
+   *  ... this.waiters ...     -- RingDeque<CompletableFuture<T>>
+   *  ... this.lock ...        -- ReentrantLock
+   *  
+   * Methods:
+   *  ... this.size() ...                         -- int
+   *  ... this.addAtHead(T) ...                   -- void
+   *  ... this.addAtTail(T) ...                   -- void
+   *  ... this.removeFromHead() ...               -- T
+   *  ... this.removeFromTail() ...               -- T
+   *  ... this.findData(IPred<T>) ...             -- T
+   *  ... this.takeAsync() ...                    -- CompletableFuture<T>
+   *  ... this.subscribe(Flow.Subscriber<? super T>) ...   -- void
+   *  ... this.add(T, boolean) ...                -- void
+   *  ... this.waiter() ...                       -- CompletableFuture<T>
+   * 
+   * Note: items may not be null. A waiter cancelled before an item reaches
+   * it is skipped, and the item goes to the next one.
+   */
+
+  // how many items are in this deque, not counting waiting takes
+  // method template: same as class template
+  public int size() {
+    this.lock.lock();
+    try {
+      return this.items.size();
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // adds the given item at the head, or hands it to the oldest waiting take
+  // method template: same as class template
+  public void addAtHead(T t) {
+    this.add(t, true);
+  }
+
+  // adds the given item at the tail, or hands it to the oldest waiting take
+  // method template: same as class template
+  public void addAtTail(T t) {
+    this.add(t, false);
+  }
+
+  // removes and produces the item at the head, without waiting
+  // method template: same as class template
+  public T removeFromHead() {
+    this.lock.lock();
+    try {
+      return this.items.removeFromHead();
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // removes and produces the item at the tail, without waiting
+  // method template: same as class template
+  public T removeFromTail() {
+    this.lock.lock();
+    try {
+      return this.items.removeFromTail();
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // produces the first item that satisfies the given predicate, or null if
+  // none does
+  /* FIELDS OF PARAMETERS - none
+   * 
+   * METHODS OF PARAMETERS - 
+   * pred.apply(T) - boolean
+   */
+  public T findData(IPred<T> pred) {
+    this.lock.lock();
+    try {
+      return this.items.findData(pred);
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // produces a future of the item at the head: already complete if there is
+  // one, otherwise completed by a later add. Cancelling the future gives up
+  // the take without losing any item.
+  // method template: same as class template
+  CompletableFuture<T> takeAsync() {
+    this.lock.lock();
+    try {
+      if (this.items.size() > 0) {
+        return CompletableFuture.completedFuture(this.items.removeFromHead());
+      }
+      CompletableFuture<T> waiter = new CompletableFuture<T>();
+      this.waiters.addAtTail(waiter);
+      return waiter;
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  // starts sending items from the head of this deque to the given
+  // subscriber, as many as it requests
+  // method template: same as class template
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    subscriber.onSubscribe(new DequeSubscription<T>(this, subscriber));
+  }
+
+  // EFFECT: gives the given item to the oldest waiting take that has not
+  // been cancelled, or if there is none adds it at the head or the tail
+  // method template: same as class template
+  void add(T t, boolean atHead) {
+    if (t == null) {
+      throw new IllegalArgumentException("Cannot add null to an async deque");
+    }
+    while (true) {
+      CompletableFuture<T> waiter = this.waiter();
+      if (waiter == null) {
+        this.lock.lock();
+        try {
+          if (this.waiters.size() == 0) {
+            if (atHead) {
+              this.items.addAtHead(t);
+            }
+            else {
+              this.items.addAtTail(t);
+            }
+            return;
+          }
+        }
+        finally {
+          this.lock.unlock();
+        }
+      }
+      else if (waiter.complete(t)) {
+        return;
+      }
+    }
+  }
+
+  // removes and produces the oldest waiting take that is not yet done, or
+  // null if there is none
+  // method template: same as class template
+  CompletableFuture<T> waiter() {
+    this.lock.lock();
+    try {
+      while (this.waiters.size() > 0) {
+        CompletableFuture<T> waiter = this.waiters.removeFromHead();
+        if (!waiter.isDone()) {
+          return waiter;
+        }
+      }
+      return null;
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+}
+
+// To represent one subscriber's subscription to an AsyncDeque: it keeps at
+// most one take outstanding, and only while the subscriber has unmet demand,
+// so items it has not asked for stay in the deque for other consumers
+class DequeSubscription<T> implements Flow.Subscription {
+  AsyncDeque<T> deque;
+  Flow.Subscriber<? super T> subscriber;
+  AtomicLong demand;
+  AtomicInteger work;
+  volatile boolean cancelled;
+  volatile CompletableFuture<T> pending;
+
+  // Constructor
+  DequeSubscription(AsyncDeque<T> deque, Flow.Subscriber<? super T> subscriber) {
+    this.deque = deque;
+    this.subscriber = subscriber;
+    this.demand = new AtomicLong(0);
+    this.work = new AtomicInteger(0);
+    this.cancelled = false;
+    this.pending = null;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.deque ...          -- AsyncDeque<T>
+   *  ... this.subscriber ...     -- Flow.Subscriber<? super T>
+   *  ... this.demand ...         -- AtomicLong
+   *  ... this.work ...           -- AtomicInteger
+   *  ... this.cancelled ...      -- boolean
+   *  ... this.pending ...        -- CompletableFuture<T>, or null
+   *  
+   * Methods:
+   *  ... this.request(long) ...          -- void
+   *  ... this.cancel() ...               -- void
+   *  ... this.drain() ...                -- void
+   *  ... this.arrived(T) ...             -- void
+   * 
+   * Note: only the thread that raises work from zero runs drain's loop, so
+   * onNext is never called by two threads at once.
+   */
+
+  // asks for n more items
+  // method template: same as class template
+  public void request(long n) {
+    if (n <= 0) {
+      this.cancel();
+      this.subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+      return;
+    }
+    this.demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+    this.drain();
+  }
+
+  // stops sending items; a take still waiting is cancelled, and an item that
+  // arrives for it anyway goes back to the head of the deque
+  // method template: same as class template
+  public void cancel() {
+    this.cancelled = true;
+    CompletableFuture<T> waiting = this.pending;
+    if (waiting != null) {
+      waiting.cancel(false);
+    }
+  }
+
+  // EFFECT: sends items the subscriber has asked for while they are there,
+  // and leaves one take waiting once they run out
+  // method template: same as class template
+  void drain() {
+    if (this.work.getAndIncrement() != 0) {
+      return;
+    }
+    do {
+      while (!this.cancelled && this.pending == null && this.demand.get() > 0) {
+        CompletableFuture<T> take = this.deque.takeAsync();
+        if (take.isDone()) {
+          this.demand.decrementAndGet();
+          this.subscriber.onNext(take.join());
+        }
+        else {
+          this.pending = take;
+          take.thenAccept(this::arrived);
+        }
+      }
+    } while (this.work.decrementAndGet() != 0);
+  }
+
+  // EFFECT: sends the item that a waiting take received, then carries on
+  // method template: same as class template
+  void arrived(T t) {
+    if (this.cancelled) {
+      this.deque.addAtHead(t);
+      return;
+    }
+    this.demand.decrementAndGet();
+    this.subscriber.onNext(t);
+    this.pending = null;
+    this.drain();
+  }
+}
+
+// Represents a boolean-valued question over values of type T
+interface IPred<T> {
+  boolean apply(T t);
+}
+
+// predicate function object that determines if a value equals a given one;
+// a Deque with a hash index answers find with one of these in O(1) without
+// calling apply, so subclasses may only choose the value, never the test
+class EqualsPred<T> implements IPred<T> {
+  final T value;
+
+  // Initial constructor
+  EqualsPred(T value) {
+    this.value = value;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.value ...     -- T
+   *  
+   * Methods:
+   *  ... this.apply(T) ...   -- boolean
+   * 
+   */
+
+  // does the given value equal this one?
+  // method template: same as class template
+  public final boolean apply(T t) {
+    return Objects.equals(this.value, t);
+  }
+}
+
+// Represents a boolean-valued question over ints
+interface IntPred {
+  boolean apply(int n);
+}
+
+// Represents a boolean-valued question over longs
+interface LongPred {
+  boolean apply(long n);
+}
+
+// Represents a boolean-valued question over doubles
+interface DoublePred {
+  boolean apply(double n);
+}
+
+// predicate function object that holds when both of its predicates hold
+class AndPred<T> implements IPred<T> {
+  IPred<T> left;
+  IPred<T> right;
+
+  // Initial constructor
+  AndPred(IPred<T> left, IPred<T> right) {
+    this.left = left;
+    this.right = right;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.left ...     -- IPred<T>
+   *  ... this.right ...    -- IPred<T>
+   *  
+   * Methods:
+   *  ... this.apply(T) ...   -- boolean
+   * 
+   */
+
+  // does the given value satisfy both predicates? The right one is only
+  // asked if the left one holds.
+  // method template: same as class template
+  public boolean apply(T t) {
+    return this.left.apply(t) && this.right.apply(t);
+  }
+}
+
+// predicate function object that holds when either of its predicates holds
+class OrPred<T> implements IPred<T> {
+  IPred<T> left;
+  IPred<T> right;
+
+  // Initial constructor
+  OrPred(IPred<T> left, IPred<T> right) {
+    this.left = left;
+    this.right = right;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.left ...     -- IPred<T>
+   *  ... this.right ...    -- IPred<T>
+   *  
+   * Methods:
+   *  ... this.apply(T) ...   -- boolean
+   * 
+   */
+
+  // does the given value satisfy either predicate? The right one is only
+  // asked if the left one does not hold.
+  // method template: same as class template
+  public boolean apply(T t) {
+    return this.left.apply(t) || this.right.apply(t);
+  }
+}
+
+// predicate function object that holds when its predicate does not
+class NotPred<T> implements IPred<T> {
+  IPred<T> inner;
+
+  // Initial constructor
+  NotPred(IPred<T> inner) {
+    this.inner = inner;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.inner ...    -- IPred<T>
+   *  
+   * Methods:
+   *  ... this.apply(T) ...   -- boolean
+   * 
+   */
+
+  // does the given value fail the predicate?
+  // method template: same as class template
+  public boolean apply(T t) {
+    return !this.inner.apply(t);
+  }
+}
+
+// predicate function object that determines if one field of a value equals a
+// given one
+class FieldEqualsPred<T, F> implements IPred<T> {
+  Function<T, F> field;
+  F value;
+
+  // Initial constructor
+  FieldEqualsPred(Function<T, F> field, F value) {
+    this.field = field;
+    this.value = value;
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.field ...    -- Function<T, F>
+   *  ... this.value ...    -- F
+   *  
+   * Methods:
+   *  ... this.apply(T) ...   -- boolean
+   * 
+   */
+
+  // does the field of the given value equal this one?
+  // method template: same as class template
+  public boolean apply(T t) {
+    return Objects.equals(this.field.apply(t), this.value);
+  }
+}
+
+// To represent a tree of AndPreds, OrPreds, NotPreds, EqualsPreds and
+// FieldEqualsPreds flattened into arrays, so that one class evaluates the
+// whole tree, with the equality tests inlined. Other predicates in the tree
+// become leaves. applyAll tests a block of values one tree node at a time,
+// keeping a bit mask of the values still undecided, so each leaf is asked
+// about exactly the values the nested form would ask about, but in one tight
+// loop per leaf instead of a chain of calls per value. Every node writes its
+// mask into its own scratch array, so a BatchPred must not test two blocks
+// at once from different threads.
+class BatchPred<T> implements IPred<T> {
+  static final int LEAF = 0;
+  static final int FIELD = 1;
+  static final int AND = 2;
+  static final int OR = 3;
+  static final int NOT = 4;
+  static final int EQUALS = 5;
+  int[] kinds;
+  int[] lefts;
+  int[] rights;
+  IPred<T>[] leaves;
+  Function<T, ?>[] fields;
+  Object[] values;
+  int root;
+  long[][] masks;
+  long[] all;
+
+  // Initial constructor: flattens the given predicate tree
+  @SuppressWarnings("unchecked")
+  BatchPred(IPred<T> tree) {
+    int nodes = countNodes(tree);
+    this.kinds = new int[nodes];
+    this.lefts = new int[nodes];
+    this.rights = new int[nodes];
+    this.leaves = (IPred<T>[]) new IPred<?>[nodes];
+    this.fields = (Function<T, ?>[]) new Function<?, ?>[nodes];
+    this.values = new Object[nodes];
+    this.root = this.flatten(tree, 0) - 1;
+    this.masks = new long[nodes][Deque.BLOCK / 64];
+    this.all = new long[Deque.BLOCK / 64];
+  }
+
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.kinds ...      -- int[], one of LEAF, FIELD, AND, OR, NOT, EQUALS per node
+   *  ... this.lefts ...      -- int[], the first child of AND, OR and NOT nodes
+   *  ... this.rights ...     -- int[], the second child of AND and OR nodes
+   *  ... this.leaves ...     -- IPred<T>[], for LEAF nodes
+   *  ... this.fields ...     -- Function<T, ?>[], for FIELD nodes
+   *  ... this.values ...     -- Object[], for FIELD and EQUALS nodes
+   *  ... this.root ...       -- int
+   *  ... this.masks ...      -- long[][], the scratch mask of each node
+   *  ... this.all ...        -- long[], the scratch mask of a whole block
+   *  
+   * Methods:
+   *  ... this.apply(T) ...                       -- boolean
+   *  ... this.applyAll(T[], BitSet) ...          -- void
+   *  ... this.applyAll(T[], int, BitSet) ...     -- void
+   *  ... this.matches(T[], int) ...              -- long[]
+   *  ... this.test(int, T) ...                   -- boolean
+   *  ... this.select(int, T[], long[], int) ...  -- long[]
+   *  ... this.flatten(IPred<T>, int) ...         -- int
+   *  ... BatchPred.countNodes(IPred<?>) ...      -- int
+   * 
+   * Note: children always come before their parent, so the root is last.
+   * A mask covers a block in words of 64 values; only the words the block
+   * needs are written, so callers read no further than that.
+   */
+
+  // does the given value satisfy the tree?
+  // method template: same as class template
+  public boolean apply(T t) {
+    return this.test(this.root, t);
+  }
+
+  // EFFECT: sets exactly the bits of the given set whose values in the chunk
+  // satisfy the tree
+  // method template: same as class template
+  void applyAll(T[] chunk, BitSet out) {
+    this.applyAll(chunk, chunk.length, out);
+  }
+
+  // EFFECT: sets exactly the bits of the given set whose values, among the
+  // first length of the chunk, satisfy the tree
+  // method template: same as class template
+  void applyAll(T[] chunk, int length, BitSet out) {
+    out.clear();
+    out.or(BitSet.valueOf(Arrays.copyOf(this.matches(chunk, length), (length + 63) / 64)));
+  }
+
+  // produces a bit mask of which values, among the first length of the
+  // chunk, satisfy the tree, in the first (length + 63) / 64 words of an
+  // array that the next call reuses
+  // method template: same as class template
+  long[] matches(T[] chunk, int length) {
+    int words = (length + 63) / 64;
+    if (words > this.all.length) {
+      this.masks = new long[this.masks.length][words];
+      this.all = new long[words];
+    }
+    Arrays.fill(this.all, 0, words, -1L);
+    if (length % 64 != 0) {
+      this.all[words - 1] = (1L << (length % 64)) - 1;
+    }
+    return this.select(this.root, chunk, this.all, words);
+  }
+
+  // does the given value satisfy the tree below the given node?
+  // method template: same as class template
+  @SuppressWarnings("unchecked")
+  boolean test(int node, T t) {
+    switch (this.kinds[node]) {
+      case LEAF:
+        return this.leaves[node].apply(t);
+      case FIELD:
+        return Objects.equals(((Function<T, Object>) this.fields[node]).apply(t),
+            this.values[node]);
+      case EQUALS:
+        return Objects.equals(this.values[node], t);
+      case AND:
+        return this.test(this.lefts[node], t) && this.test(this.rights[node], t);
+      case OR:
+        return this.test(this.lefts[node], t) || this.test(this.rights[node], t);
+      default:
+        return !this.test(this.lefts[node], t);
+    }
+  }
+
+  // produces the mask of the values in the chunk, among those in the given
+  // mask, that satisfy the tree below the given node, in the first words
+  // words of a scratch array of that subtree
+  // method template: same as class template
+  @SuppressWarnings("unchecked")
+  long[] select(int node, T[] chunk, long[] active, int words) {
+    int kind = this.kinds[node];
+    if (kind == AND) {
+      return this.select(this.rights[node], chunk,
+          this.select(this.lefts[node], chunk, active, words), words);
+    }
+    if (kind == OR) {
+      long[] left = this.select(this.lefts[node], chunk, active, words);
+      long[] rest = this.masks[node];
+      for (int w = 0; w < words; w += 1) {
+        rest[w] = active[w] & ~left[w];
+      }
+      long[] right = this.select(this.rights[node], chunk, rest, words);
+      for (int w = 0; w < words; w += 1) {
+        left[w] |= right[w];
+      }
+      return left;
+    }
+    if (kind == NOT) {
+      long[] inner = this.select(this.lefts[node], chunk, active, words);
+      for (int w = 0; w < words; w += 1) {
+        inner[w] = active[w] & ~inner[w];
+      }
+      return inner;
+    }
+    long[] hits = this.masks[node];
+    if (kind == EQUALS) {
+      Object value = this.values[node];
+      for (int w = 0; w < words; w += 1) {
+        long word = 0;
+        for (long bits = active[w]; bits != 0; bits &= bits - 1) {
+          int bit = Long.numberOfTrailingZeros(bits);
+          word |= (Objects.equals(value, chunk[(w << 6) | bit]) ? 1L : 0L) << bit;
+        }
+        hits[w] = word;
+      }
+    }
+    else if (kind == LEAF) {
+      IPred<T> leaf = this.leaves[node];
+      for (int w = 0; w < words; w += 1) {
+        long word = 0;
+        for (long bits = active[w]; bits != 0; bits &= bits - 1) {
+          int bit = Long.numberOfTrailingZeros(bits);
+          word |= (leaf.apply(chunk[(w << 6) | bit]) ? 1L : 0L) << bit;
+        }
+        hits[w] = word;
+      }
+    }
+    else {
+      Function<T, Object> field = (Function<T, Object>) this.fields[node];
+      Object value = this.values[node];
+      for (int w = 0; w < words; w += 1) {
+        long word = 0;
+        for (long bits = active[w]; bits != 0; bits &= bits - 1) {
+          int bit = Long.numberOfTrailingZeros(bits);
+          word |= (Objects.equals(field.apply(chunk[(w << 6) | bit]), value) ? 1L : 0L) << bit;
+        }
+        hits[w] = word;
+      }
+    }
+    return hits;
+  }
+
+  // EFFECT: stores the given tree in the arrays starting at the given node,
+  // children first; produces the node after the last one used
+  // method template: same as class template
+  @SuppressWarnings("unchecked")
+  int flatten(IPred<T> pred, int next) {
+    if (pred instanceof AndPred || pred instanceof OrPred) {
+      IPred<T> left = pred instanceof AndPred ? ((AndPred<T>) pred).left : ((OrPred<T>) pred).left;
+      IPred<T> right =
+          pred instanceof AndPred ? ((AndPred<T>) pred).right : ((OrPred<T>) pred).right;
+      int afterLeft = this.flatten(left, next);
+      int afterRight = this.flatten(right, afterLeft);
+      this.kinds[afterRight] = pred instanceof AndPred ? AND : OR;
+      this.lefts[afterRight] = afterLeft - 1;
+      this.rights[afterRight] = afterRight - 1;
+      return afterRight + 1;
+    }
+    if (pred instanceof NotPred) {
+      int afterInner = this.flatten(((NotPred<T>) pred).inner, next);
+      this.kinds[afterInner] = NOT;
+      this.lefts[afterInner] = afterInner - 1;
+      return afterInner + 1;
+    }
+    if (pred instanceof EqualsPred) {
+      this.kinds[next] = EQUALS;
+      this.values[next] = ((EqualsPred<T>) pred).value;
+      return next + 1;
+    }
+    if (pred instanceof FieldEqualsPred) {
+      this.kinds[next] = FIELD;
+      this.fields[next] = ((FieldEqualsPred<T, ?>) pred).field;
+      this.values[next] = ((FieldEqualsPred<T, ?>) pred).value;
+      return next + 1;
+    }
+    this.kinds[next] = LEAF;
+    this.leaves[next] = pred;
+    return next + 1;
+  }
+
+  // how many nodes the given tree flattens into
+  static int countNodes(IPred<?> pred) {
+    if (pred instanceof AndPred) {
+      return 1 + countNodes(((AndPred<?>) pred).left) + countNodes(((AndPred<?>) pred).right);
+    }
+    if (pred instanceof OrPred) {
+      return 1 + countNodes(((OrPred<?>) pred).left) + countNodes(((OrPred<?>) pred).right);
+    }
+    if (pred instanceof NotPred) {
+      return 1 + countNodes(((NotPred<?>) pred).inner);
+    }
+    return 1;
+  }
+}
+
+// predicate function object that determines if a string length is 4
+class IsFour implements IPred<String> {
+  
+  /*TEMPLATE:
    * Fields:
    *  -- None --
    *  
@@ -308,32 +5630,639 @@ class IsFour implements IPred<String> {
    * 
    */
 
-  // is the given string of length 4?
-  // method template: same as class template
-  public boolean apply(String s) { 
-    return s.length() == 4;
+  // is the given string of length 4?
+  // method template: same as class template
+  public boolean apply(String s) { 
+    return s.length() == 4;
+  }
+}
+
+// predicate function object that determines if a string is "bcd"
+class IsBCD extends EqualsPred<String> {
+
+  // Initial constructor
+  IsBCD() {
+    super("bcd");
+  }
+  
+  /*TEMPLATE:
+   * Fields:
+   *  ... this.value ...   -- String, always "bcd"
+   *  
+   * Methods:
+   *  ... this.apply(String) ...   -- boolean
+   * 
+   */
+}
+
+// predicate function object that determines if an int is negative
+class IsNegative implements IntPred {
+
+  /*TEMPLATE:
+   * Fields:
+   *  -- None --
+   *  
+   * Methods:
+   *  ... this.apply(int) ...   -- boolean
+   * 
+   */
+
+  // is the given int below zero?
+  // method template: same as class template
+  public boolean apply(int n) {
+    return n < 0;
+  }
+}
+
+// To represent a subscriber that remembers what it was sent, for tests
+class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+  Flow.Subscription subscription;
+  ArrayList<T> received;
+  Throwable error;
+
+  // Initial constructor
+  CollectingSubscriber() {
+    this.subscription = null;
+    this.received = new ArrayList<T>();
+    this.error = null;
+  }
+
+  // remembers the subscription, without asking for anything yet
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+  }
+
+  // remembers the given item
+  public synchronized void onNext(T t) {
+    this.received.add(t);
+  }
+
+  // remembers the given error
+  public void onError(Throwable error) {
+    this.error = error;
+  }
+
+  // nothing to do: an AsyncDeque never completes
+  public void onComplete() {
+  }
+
+  // a copy of the items received so far
+  synchronized ArrayList<T> items() {
+    return new ArrayList<T>(this.received);
+  }
+}
+
+// To represent a thread that adds a run of numbered items to a ConcurrentDeque
+class DequeProducer extends Thread {
+  ConcurrentDeque<Integer> deque;
+  int id;
+  int items;
+
+  // Initial constructor
+  DequeProducer(ConcurrentDeque<Integer> deque, int id, int items) {
+    this.deque = deque;
+    this.id = id;
+    this.items = items;
+  }
+
+  // adds id * items, id * items + 1, ... in order
+  // method template: same as class template
+  public void run() {
+    for (int i = 0; i < this.items; i += 1) {
+      this.deque.addAtTail(this.id * this.items + i);
+    }
+  }
+}
+
+// To represent a thread that removes items from a ConcurrentDeque until it
+// has seen its share, remembering them in the order they were removed
+class DequeConsumer extends Thread {
+  ConcurrentDeque<Integer> deque;
+  AtomicInteger remaining;
+  ArrayList<Integer> seen;
+
+  // Initial constructor: remaining is shared by every consumer
+  DequeConsumer(ConcurrentDeque<Integer> deque, AtomicInteger remaining) {
+    this.deque = deque;
+    this.remaining = remaining;
+    this.seen = new ArrayList<Integer>();
+  }
+
+  // removes items until all consumers together have taken every item
+  // method template: same as class template
+  public void run() {
+    while (this.remaining.get() > 0) {
+      Integer n = this.deque.poll();
+      if (n != null) {
+        this.seen.add(n);
+        this.remaining.decrementAndGet();
+      }
+      else {
+        Thread.yield();
+      }
+    }
+  }
+}
+
+// predicate function object that burns time before checking whether a
+// number is a multiple of seven, to stand in for a costly predicate
+class IsSlowSeventh implements IPred<Integer> {
+
+  // does the given number, after some busywork, divide by seven?
+  // method template: same as class template
+  public boolean apply(Integer n) {
+    int x = n;
+    for (int i = 0; i < 2000; i += 1) {
+      x = x * 1103515245 + 12345;
+    }
+    return (x | 1) * (n % 7) == 0;
+  }
+}
+
+// To store byte arrays as themselves
+class RawCodec implements BytesCodec<byte[]> {
+
+  // the given bytes
+  public byte[] toBytes(byte[] bytes) {
+    return bytes;
+  }
+
+  // the given bytes
+  public byte[] fromBytes(byte[] bytes) {
+    return bytes;
+  }
+}
+
+// To compute a Fibonacci number by forking StealTasks
+class FibTask extends StealTask<Integer> {
+  int n;
+
+  // Initial constructor
+  FibTask(int n) {
+    this.n = n;
+  }
+
+  // adds the two previous Fibonacci numbers, forking one of them
+  // method template: same as class template
+  Integer compute() {
+    if (this.n < 12) {
+      return FibTask.fib(this.n);
+    }
+    StealTask<Integer> left = new FibTask(this.n - 1).fork();
+    int right = new FibTask(this.n - 2).compute();
+    return left.join() + right;
+  }
+
+  // computes the nth Fibonacci number on this thread
+  static int fib(int n) {
+    if (n < 2) {
+      return n;
+    }
+    return FibTask.fib(n - 1) + FibTask.fib(n - 2);
+  }
+}
+
+// To represent a task that fails, either itself or in a subtask it forks and
+// joins, for testing how a StealPool reports failures
+class FailingTask extends StealTask<Integer> {
+  int depth;
+
+  // Initial constructor
+  FailingTask(int depth) {
+    this.depth = depth;
+  }
+
+  // throws at depth 0, otherwise forks and joins a task one level shallower
+  // method template: same as class template
+  Integer compute() {
+    if (this.depth == 0) {
+      throw new IllegalStateException("Task failed");
+    }
+    return new FailingTask(this.depth - 1).fork().join();
+  }
+}
+
+// To compute a Fibonacci number by forking ForkJoinPool tasks, for comparison
+class FibForkJoin extends RecursiveTask<Integer> {
+  static final long serialVersionUID = 1L;
+  int n;
+
+  // Initial constructor
+  FibForkJoin(int n) {
+    this.n = n;
+  }
+
+  // adds the two previous Fibonacci numbers, forking one of them
+  // method template: same as class template
+  protected Integer compute() {
+    if (this.n < 12) {
+      return FibTask.fib(this.n);
+    }
+    FibForkJoin left = new FibForkJoin(this.n - 1);
+    left.fork();
+    int right = new FibForkJoin(this.n - 2).compute();
+    return left.join() + right;
+  }
+}
+
+// To run the throughput measurements for the deques; results go to System.out
+class DequeBenchmarks {
+
+  // runs every benchmark
+  public static void main(String[] args) throws InterruptedException {
+    int threads = Runtime.getRuntime().availableProcessors();
+    for (int n = 1; n <= Math.max(threads, 4); n *= 2) {
+      System.out.println("ConcurrentDeque, " + n + " producers / " + n + " consumers: "
+          + concurrentThroughput(n, 1000000 / n) + " ops/ms");
+    }
+    StealPool steal = new StealPool(threads);
+    ForkJoinPool forkJoin = new ForkJoinPool(threads);
+    for (int round = 0; round < 5; round += 1) {
+      long start = System.nanoTime();
+      steal.invoke(new FibTask(32));
+      long stealMillis = (System.nanoTime() - start) / 1000000;
+      start = System.nanoTime();
+      forkJoin.invoke(new FibForkJoin(32));
+      long forkJoinMillis = (System.nanoTime() - start) / 1000000;
+      System.out.println("fib(32) on " + threads + " threads: StealPool " + stealMillis
+          + " ms, ForkJoinPool " + forkJoinMillis + " ms");
+    }
+    steal.close();
+    forkJoin.shutdown();
+    Deque<Integer> numbers = new Deque<Integer>();
+    for (int i = 0; i < 200000; i += 1) {
+      numbers.addAtTail(i);
+    }
+    for (int items : new int[] {10000, 1000000}) {
+      System.out.println(scanComparison(items));
+    }
+    System.out.println(asyncConsumers(100000));
+    for (int items : new int[] {10000, 1000000}) {
+      System.out.println(predComparison(items));
+    }
+    for (int width : new int[] {16, 1024}) {
+      System.out.println(windowComparison(width, 200000));
+    }
+    for (int recordSize : new int[] {16, 4096}) {
+      System.out.println(persistentThroughput(recordSize, 64 << 20));
+    }
+    for (int round = 0; round < 5; round += 1) {
+      long start = System.nanoTime();
+      long sequential = numbers.stream().filter(new IsSlowSeventh()::apply).count();
+      long sequentialMillis = (System.nanoTime() - start) / 1000000;
+      start = System.nanoTime();
+      long parallel = numbers.count(new IsSlowSeventh());
+      long parallelMillis = (System.nanoTime() - start) / 1000000;
+      System.out.println("count of a costly IPred over " + numbers.size() + " items ("
+          + sequential + "/" + parallel + " matches): sequential " + sequentialMillis
+          + " ms, parallel " + parallelMillis + " ms");
+    }
+  }
+
+  // fills a Deque and an UnrolledDeque with the same items, added at random
+  // ends so that neighbouring nodes are not neighbours in memory, and produces
+  // a line with the time per item of a find that matches nothing in each
+  static String scanComparison(int items) {
+    Random rand = new Random(items);
+    Deque<Integer> nodes = new Deque<Integer>();
+    UnrolledDeque<Integer> unrolled = new UnrolledDeque<Integer>();
+    for (int i = 0; i < items; i += 1) {
+      Integer n = rand.nextInt(1000);
+      if (rand.nextBoolean()) {
+        nodes.addAtHead(n);
+        unrolled.addAtHead(n);
+      }
+      else {
+        nodes.addAtTail(n);
+        unrolled.addAtTail(n);
+      }
+    }
+    IPred<Integer> never = x -> x < 0;
+    double nodeNanos = 0;
+    double unrolledNanos = 0;
+    for (int round = 0; round < 20; round += 1) {
+      long start = System.nanoTime();
+      nodes.findData(never);
+      nodeNanos = (double) (System.nanoTime() - start) / items;
+      start = System.nanoTime();
+      unrolled.findData(never);
+      unrolledNanos = (double) (System.nanoTime() - start) / items;
+    }
+    return String.format("find over %d items: Deque %.2f ns/item, UnrolledDeque %.2f ns/item",
+        items, nodeNanos, unrolledNanos);
+  }
+
+  // searches a deque of random words for a tree of predicates that no word
+  // satisfies, once nested as anonymous IPreds, once built from the
+  // combinators and once flattened into a BatchPred, and produces a line with
+  // the best time per item of each. Other trees are run first, as a real
+  // program would, so that no call site has seen only one kind of predicate.
+  static String predComparison(int items) {
+    Random rand = new Random(items);
+    String[] words = {"abc", "bcd", "abcd", "bcde", "xyz", "four", "b", "bird"};
+    Deque<String> deque = new Deque<String>();
+    for (int i = 0; i < items; i += 1) {
+      deque.addAtTail(words[rand.nextInt(words.length)]);
+    }
+    IPred<String> isFour = new IsFour();
+    IPred<String> isBCD = new IsBCD();
+    IPred<String> startsZ = new FieldEqualsPred<String, Character>(s -> s.charAt(0), 'z');
+    IPred<String> notBCD = new IPred<String>() {
+      public boolean apply(String s) {
+        return !isBCD.apply(s);
+      }
+    };
+    IPred<String> anonymous = new IPred<String>() {
+      public boolean apply(String s) {
+        return isFour.apply(s) && notBCD.apply(s) && startsZ.apply(s);
+      }
+    };
+    IPred<String> tree = new AndPred<String>(
+        new AndPred<String>(isFour, new NotPred<String>(isBCD)), startsZ);
+    IPred<String> batch = new BatchPred<String>(tree);
+    ArrayList<IPred<String>> others = new ArrayList<IPred<String>>();
+    others.add(s -> s.isEmpty());
+    others.add(s -> s.charAt(0) == 'a');
+    others.add(s -> s.length() > 3);
+    others.add(new FieldEqualsPred<String, Integer>(String::length, 3));
+    for (IPred<String> a : others) {
+      for (IPred<String> b : others) {
+        IPred<String> other = new OrPred<String>(a, new NotPred<String>(b));
+        deque.find(other);
+        deque.find(new BatchPred<String>(other));
+      }
+    }
+    long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+    boolean none = true;
+    ArrayList<IPred<String>> preds = new ArrayList<IPred<String>>(
+        Arrays.asList(anonymous, tree, batch));
+    for (int round = 0; round < 20; round += 1) {
+      for (int i = 0; i < preds.size(); i += 1) {
+        long start = System.nanoTime();
+        none = none && deque.find(preds.get(i)) == deque.header;
+        best[i] = Math.min(best[i], System.nanoTime() - start);
+      }
+    }
+    return String.format("find over %d items: anonymous IPreds %.2f ns/item, "
+        + "combinators %.2f ns/item, BatchPred %.2f ns/item%s", items,
+        (double) best[0] / items, (double) best[1] / items, (double) best[2] / items,
+        none ? "" : " (MISMATCH)");
+  }
+
+  // starts the given number of consumers on one AsyncDeque, each a take
+  // waiting as a future rather than a thread, then feeds them one item each
+  // from a producer thread, and produces a line with the time taken
+  static String asyncConsumers(int consumers) throws InterruptedException {
+    AsyncDeque<Integer> deque = new AsyncDeque<Integer>();
+    LongAdder sum = new LongAdder();
+    long start = System.nanoTime();
+    CompletableFuture<?>[] done = new CompletableFuture<?>[consumers];
+    for (int i = 0; i < consumers; i += 1) {
+      done[i] = deque.takeAsync().thenAccept(sum::add);
+    }
+    long waitingNanos = System.nanoTime() - start;
+    Thread producer = new Thread(() -> {
+      for (int i = 0; i < consumers; i += 1) {
+        deque.addAtTail(i);
+      }
+    });
+    producer.start();
+    CompletableFuture.allOf(done).join();
+    producer.join();
+    long totalNanos = System.nanoTime() - start;
+    return "AsyncDeque, " + consumers + " waiting consumers: parked in "
+        + waitingNanos / 1000000 + " ms, all served in " + totalNanos / 1000000 + " ms"
+        + (sum.sum() == (long) consumers * (consumers - 1) / 2 ? "" : " (MISMATCH)");
+  }
+
+  // slides a window of the given width over the given number of random
+  // numbers, once with a MonotonicWindow and once walking the whole window
+  // for its minimum after every slide, and produces a line with both times
+  static String windowComparison(int width, int items) {
+    Random rand = new Random(width);
+    Integer[] numbers = new Integer[items];
+    for (int i = 0; i < items; i += 1) {
+      numbers[i] = rand.nextInt();
+    }
+    long start = System.nanoTime();
+    long monotonicSum = 0;
+    MonotonicWindow<Integer> fast = new MonotonicWindow<Integer>(Integer::compare, width);
+    for (Integer n : numbers) {
+      fast.push(n);
+      monotonicSum += fast.min();
+    }
+    long monotonicMillis = (System.nanoTime() - start) / 1000000;
+    start = System.nanoTime();
+    long walkSum = 0;
+    Deque<Integer> window = new Deque<Integer>();
+    for (Integer n : numbers) {
+      window.addAtTail(n);
+      if (window.size() > width) {
+        window.removeFromHead();
+      }
+      int min = Integer.MAX_VALUE;
+      for (Integer m : window) {
+        min = Math.min(min, m);
+      }
+      walkSum += min;
+    }
+    long walkMillis = (System.nanoTime() - start) / 1000000;
+    return "sliding min over " + items + " items, width " + width + ": MonotonicWindow "
+        + monotonicMillis + " ms, walking the window " + walkMillis + " ms"
+        + (monotonicSum == walkSum ? "" : " (MISMATCH)");
+  }
+
+  // appends and then removes records of the given size through a
+  // PersistentDeque until the given number of bytes has passed, and produces
+  // a line describing the throughput each way
+  static String persistentThroughput(int recordSize, long bytes) {
+    try {
+      Path dir = Files.createTempDirectory("deque-bench");
+      PersistentDeque<byte[]> deque =
+          new PersistentDeque<byte[]>(dir, new RawCodec(), 16 << 20, 0);
+      byte[] record = new byte[recordSize];
+      long records = bytes / recordSize;
+      long start = System.nanoTime();
+      for (long i = 0; i < records; i += 1) {
+        deque.addAtTail(record);
+      }
+      deque.sync();
+      long addNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (long i = 0; i < records; i += 1) {
+        deque.removeFromHead();
+      }
+      long removeNanos = System.nanoTime() - start;
+      deque.close();
+      for (Path p : Files.list(dir).toArray(Path[]::new)) {
+        Files.delete(p);
+      }
+      Files.delete(dir);
+      return "PersistentDeque, " + recordSize + "-byte records: addAtTail "
+          + (bytes * 1000 / Math.max(1, addNanos)) + " MB/s, removeFromHead "
+          + (bytes * 1000 / Math.max(1, removeNanos)) + " MB/s";
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // runs the given number of producers and consumers over one ConcurrentDeque,
+  // each producer adding the given number of items, and produces the number of
+  // adds and removes completed per millisecond
+  static long concurrentThroughput(int threads, int items) throws InterruptedException {
+    ConcurrentDeque<Integer> deque = new ConcurrentDeque<Integer>();
+    AtomicInteger remaining = new AtomicInteger(threads * items);
+    ArrayList<Thread> all = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i += 1) {
+      all.add(new DequeProducer(deque, i, items));
+      all.add(new DequeConsumer(deque, remaining));
+    }
+    long start = System.nanoTime();
+    for (Thread th : all) {
+      th.start();
+    }
+    for (Thread th : all) {
+      th.join();
+    }
+    long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+    return 2L * threads * items / millis;
   }
 }
 
-// predicate function object that determines if a string is "bcd"
-class IsBCD implements IPred<String> {
-  
-  /*TEMPLATE:
-   * Fields:
-   *  -- None --
-   *  
-   * Methods:
-   *  ... this.apply(String) ...   -- boolean
-   *  
-   * Methods for Fields:
-   *  ... this.s.equals() ...      -- boolean
-   * 
-   */
+// To run every deque operation against every IDeque implementation at sizes
+// from 10 up to 10^7 items, alone and shared between threads, reporting
+// throughput and bytes allocated per operation (like JMH's -prof gc).
+// New implementations plug in through makers(). Run with the largest size
+// as the optional argument; results go to System.out.
+class DequeSuite {
+  static final long WARMUP_NANOS = 200000000L;
+  static final long MEASURE_NANOS = 500000000L;
 
-  // is the given string "bcd"?
-  // method template: same as class template
-  public boolean apply(String s) {
-    return s.equals("bcd");
+  // runs the whole suite
+  public static void main(String[] args) throws InterruptedException {
+    int maxSize = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    System.out.println(String.format("%-14s %9s %-26s %14s %10s",
+        "deque", "size", "operation", "ops/ms", "B/op"));
+    for (int size = 10; size <= maxSize; size *= 10) {
+      for (Map.Entry<String, IntFunction<IDeque<String>>> maker : makers().entrySet()) {
+        IDeque<String> d = maker.getValue().apply(2 * size + 16);
+        for (int i = 0; i < size; i += 1) {
+          d.addAtTail("item");
+        }
+        String name = maker.getKey();
+        report(name, size, "addAtHead+removeFromHead", d, x -> {
+          x.addAtHead("item");
+          x.removeFromHead();
+        });
+        report(name, size, "addAtTail+removeFromTail", d, x -> {
+          x.addAtTail("item");
+          x.removeFromTail();
+        });
+        report(name, size, "addAtTail+removeFromHead", d, x -> {
+          x.addAtTail("item");
+          x.removeFromHead();
+        });
+        report(name, size, "size", d, x -> x.size());
+        report(name, size, "findData (no match)", d, x -> x.findData(new IsBCD()));
+        if (d instanceof Deque) {
+          Deque<String> nodes = (Deque<String>) d;
+          report(name, size, "removeNode+addAtTail", d, x -> {
+            nodes.removeNode(nodes.header.next);
+            nodes.addAtTail("item");
+          });
+        }
+      }
+    }
+    for (int threads = 1; threads <= Math.max(4, Runtime.getRuntime().availableProcessors());
+        threads *= 2) {
+      System.out.println(String.format("%-14s %9s %-26s %14.1f",
+          "BoundedDeque", threads + " thr", "addAtTail+poll (shared)",
+          contended(threads)));
+    }
+  }
+
+  // the implementations under test, by name, each made from a capacity
+  static Map<String, IntFunction<IDeque<String>>> makers() {
+    LinkedHashMap<String, IntFunction<IDeque<String>>> makers =
+        new LinkedHashMap<String, IntFunction<IDeque<String>>>();
+    makers.put("Deque", capacity -> new Deque<String>());
+    makers.put("Deque(pooled)", capacity -> new Deque<String>(64));
+    makers.put("RingDeque", capacity -> new RingDeque<String>());
+    makers.put("IndexedDeque", capacity -> new IndexedDeque<String>());
+    makers.put("BoundedDeque", capacity -> new BoundedDeque<String>(capacity));
+    makers.put("OffHeapDeque", capacity -> new OffHeapDeque<String>(new AsciiCodec(8), capacity));
+    makers.put("UnrolledDeque", capacity -> new UnrolledDeque<String>());
+    makers.put("AsyncDeque", capacity -> new AsyncDeque<String>());
+    makers.put("SnapshotDeque", capacity -> new SnapshotDeque<String>());
+    makers.put("Metered(off)", capacity -> new MeteredDeque<String>(new RingDeque<String>()));
+    makers.put("Metered(on)", capacity -> {
+      MeteredDeque<String> metered = new MeteredDeque<String>(new RingDeque<String>());
+      metered.enabled = true;
+      return metered;
+    });
+    return makers;
+  }
+
+  // runs the given operation over the given deque for a warm-up period and
+  // then a measured one, and prints its throughput and allocation
+  static void report(String name, int size, String label, IDeque<String> d,
+      Consumer<IDeque<String>> op) {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    run(d, op, WARMUP_NANOS);
+    long before = bean.getThreadAllocatedBytes(id);
+    long start = System.nanoTime();
+    long ops = run(d, op, MEASURE_NANOS);
+    long nanos = System.nanoTime() - start;
+    long bytes = bean.getThreadAllocatedBytes(id) - before;
+    System.out.println(String.format("%-14s %9d %-26s %14.1f %10.1f",
+        name, size, label, ops * 1000000.0 / nanos, (double) bytes / ops));
+  }
+
+  // runs the given operation over the given deque for at least the given
+  // time, and produces how many times it ran
+  static long run(IDeque<String> d, Consumer<IDeque<String>> op, long nanos) {
+    long ops = 0;
+    long end = System.nanoTime() + nanos;
+    int batch = 1;
+    while (System.nanoTime() < end) {
+      for (int i = 0; i < batch; i += 1) {
+        op.accept(d);
+      }
+      ops += batch;
+      batch = Math.min(batch * 2, 4096);
+    }
+    return ops;
+  }
+
+  // produces the adds and polls per millisecond that the given number of
+  // threads together get through one shared BoundedDeque
+  static double contended(int threads) throws InterruptedException {
+    BoundedDeque<String> d = new BoundedDeque<String>(1 << 16);
+    AtomicLong ops = new AtomicLong(0);
+    long end = System.nanoTime() + MEASURE_NANOS;
+    ArrayList<Thread> all = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i += 1) {
+      all.add(new Thread(() -> {
+        long mine = 0;
+        while (System.nanoTime() < end) {
+          d.addAtTail("item");
+          d.poll();
+          mine += 2;
+        }
+        ops.addAndGet(mine);
+      }));
+    }
+    long start = System.nanoTime();
+    for (Thread th : all) {
+      th.start();
+    }
+    for (Thread th : all) {
+      th.join();
+    }
+    return ops.get() * 1000000.0 / (System.nanoTime() - start);
   }
 }
 
@@ -410,6 +6339,59 @@ class ExamplesDeque {
     t.checkException(
         new RuntimeException("Cannot remove from an empty deque"),
         this.deque1, "removeFromTail");
+    t.checkException(
+        new RuntimeException("Cannot remove from an empty deque"),
+        new RingDeque<String>(), "removeFromHead");
+    t.checkException(
+        new RuntimeException("Cannot remove from an empty deque"),
+        new RingDeque<String>(), "removeFromTail");
+    t.checkConstructorException(
+        new IllegalArgumentException("Capacity must be positive"),
+        "RingDeque", 0);
+    t.checkConstructorException(
+        new IllegalArgumentException("Capacity must be between 1 and 2^30"),
+        "RingDeque", (1 << 30) + 1);
+    t.checkExpect(RingDeque.ringLength(1 << 30), 1 << 30);
+    t.checkExpect(RingDeque.ringLength(17), 32);
+  }
+
+  // checks the behaviour every IDeque must share, starting from an empty deque
+  void checkIDeque(Tester t, IDeque<String> d) {
+    t.checkExpect(d.size(), 0);
+    d.addAtTail("bcd");
+    d.addAtTail("cde");
+    d.addAtHead("abc");
+    d.addAtTail("def");
+    t.checkExpect(d.size(), 4);
+    t.checkExpect(d.findData(this.IsBCD), "bcd");
+    t.checkExpect(d.findData(this.IsFour), null);
+    d.addAtHead("fish");
+    t.checkExpect(d.findData(this.IsFour), "fish");
+    t.checkExpect(d.removeFromHead(), "fish");
+    t.checkExpect(d.removeFromTail(), "def");
+    t.checkExpect(d.removeFromHead(), "abc");
+    t.checkExpect(d.size(), 2);
+    for (int i = 0; i < 100; i += 1) {
+      d.addAtHead("h" + i);
+      d.addAtTail("t" + i);
+    }
+    t.checkExpect(d.size(), 202);
+    t.checkExpect(d.removeFromHead(), "h99");
+    t.checkExpect(d.removeFromTail(), "t99");
+    t.checkExpect(d.findData(this.IsBCD), "bcd");
+    while (d.size() > 0) {
+      d.removeFromTail();
+    }
+    t.checkExpect(d.findData(this.IsBCD), null);
+  }
+
+  // tests that both deque implementations behave the same way
+  void testIDeque(Tester t) {
+    this.checkIDeque(t, new Deque<String>());
+    this.checkIDeque(t, new RingDeque<String>());
+    this.checkIDeque(t, new RingDeque<String>(1));
+    t.checkExpect(new RingDeque<String>(5).items.length, 8);
+    t.checkExpect(new RingDeque<String>(16).items.length, 16);
   }
 
   // tests for size method
@@ -418,6 +6400,15 @@ class ExamplesDeque {
     t.checkExpect(this.deque1.size(), 0);
     t.checkExpect(this.deque2.size(), 4);
     t.checkExpect(this.deque3.size(), 4);
+    this.deque2.addAtHead("aaa");
+    this.deque2.addAtTail("zzz");
+    this.deque2.header.add("ccc", 3);
+    t.checkExpect(this.deque2.size(), 7);
+    this.deque2.removeFromHead();
+    this.deque2.removeNode(this.bcd);
+    this.deque2.removeNode(this.dog);
+    t.checkExpect(this.deque2.size(), 5);
+    t.checkExpect(this.deque3.size(), 4);
   }
 
   // tests methods for adding items to deques
@@ -484,6 +6475,9 @@ class ExamplesDeque {
     t.checkExpect(this.deque2.find(IsBCD), this.bcd);
     t.checkExpect(this.deque3.find(IsFour), this.fish);
     t.checkExpect(this.deque2.find(IsFour), this.deque2.header);
+    t.checkExpect(this.deque1.findData(IsBCD), null);
+    t.checkExpect(this.deque2.findData(IsBCD), "bcd");
+    t.checkExpect(this.deque3.findData(IsFour), "fish");
   }
 
   // tests for the removeNode method
@@ -496,4 +6490,1471 @@ class ExamplesDeque {
     t.checkExpect(this.horse.prev, this.cat);
     t.checkExpect(this.cat.next, this.horse);
   }
+
+  // tests for the primitive deques
+  void testPrimitiveDeques(Tester t) {
+    IntDeque ints = new IntDeque(2);
+    ints.addAtTail(3);
+    ints.addAtTail(-4);
+    ints.addAtHead(2);
+    ints.addAtHead(1);
+    ints.addAtTail(-5);
+    t.checkExpect(ints.size(), 5);
+    t.checkExpect(ints.find(new IsNegative()), 3);
+    t.checkExpect(ints.get(3), -4);
+    t.checkExpect(ints.removeFromHead(), 1);
+    t.checkExpect(ints.removeFromTail(), -5);
+    t.checkExpect(ints.find(new IsNegative()), 2);
+    ints.removeFromTail();
+    t.checkExpect(ints.find(new IsNegative()), -1);
+    t.checkException(new IndexOutOfBoundsException("No item at position 2"),
+        ints, "get", 2);
+
+    LongDeque longs = new LongDeque();
+    for (long i = 0; i < 40; i += 1) {
+      longs.addAtTail(i * 10000000000L);
+    }
+    t.checkExpect(longs.size(), 40);
+    t.checkExpect(longs.find(new LongPred() {
+      public boolean apply(long n) {
+        return n > 100000000000L;
+      }
+    }), 11);
+    t.checkExpect(longs.removeFromTail(), 390000000000L);
+    t.checkExpect(longs.removeFromHead(), 0L);
+
+    DoubleDeque doubles = new DoubleDeque();
+    doubles.addAtHead(0.5);
+    doubles.addAtHead(1.5);
+    t.checkExpect(doubles.find(new DoublePred() {
+      public boolean apply(double n) {
+        return n < 1.0;
+      }
+    }), 1);
+    t.checkInexact(doubles.removeFromTail(), 0.5, 0.001);
+    t.checkInexact(doubles.removeFromTail(), 1.5, 0.001);
+    t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+        doubles, "removeFromHead");
+    for (String name : new String[] {"IntDeque", "LongDeque", "DoubleDeque"}) {
+      t.checkConstructorException(new IllegalArgumentException("Capacity must be positive"),
+          name, 0);
+      t.checkConstructorException(
+          new IllegalArgumentException("Capacity must be between 1 and 2^30"),
+          name, Integer.MAX_VALUE);
+    }
+  }
+
+  // tests for the ConcurrentDeque on one thread
+  void testConcurrentDeque(Tester t) {
+    ConcurrentDeque<String> d = new ConcurrentDeque<String>();
+    t.checkExpect(d.poll(), null);
+    t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+        d, "removeFromHead");
+    t.checkException(new IllegalArgumentException("Cannot add null to a concurrent deque"),
+        d, "addAtTail", (Object) null);
+    d.addAtTail("abc");
+    d.addAtTail("bcd");
+    d.addAtTail("fish");
+    t.checkExpect(d.size(), 3);
+    t.checkExpect(d.findData(this.IsBCD), "bcd");
+    t.checkExpect(d.findData(this.IsFour), "fish");
+    t.checkExpect(d.removeFromHead(), "abc");
+    t.checkExpect(d.poll(), "bcd");
+    t.checkExpect(d.findData(this.IsBCD), null);
+    t.checkExpect(d.size(), 1);
+  }
+
+  // tests that many producers and consumers sharing a ConcurrentDeque lose and
+  // duplicate nothing, and that every consumer sees each producer's items in
+  // the order they were added, as a linearizable queue must
+  void testConcurrentDequeThreads(Tester t) {
+    int threads = 4;
+    int items = 50000;
+    ConcurrentDeque<Integer> deque = new ConcurrentDeque<Integer>();
+    AtomicInteger remaining = new AtomicInteger(threads * items);
+    ArrayList<DequeConsumer> consumers = new ArrayList<DequeConsumer>();
+    ArrayList<Thread> all = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i += 1) {
+      DequeConsumer c = new DequeConsumer(deque, remaining);
+      consumers.add(c);
+      all.add(c);
+      all.add(new DequeProducer(deque, i, items));
+    }
+    try {
+      for (Thread th : all) {
+        th.start();
+      }
+      for (Thread th : all) {
+        th.join();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    boolean[] taken = new boolean[threads * items];
+    boolean duplicates = false;
+    boolean inOrder = true;
+    for (DequeConsumer c : consumers) {
+      int[] lastFrom = new int[threads];
+      for (int i = 0; i < threads; i += 1) {
+        lastFrom[i] = -1;
+      }
+      for (Integer n : c.seen) {
+        duplicates = duplicates || taken[n];
+        taken[n] = true;
+        inOrder = inOrder && n > lastFrom[n / items];
+        lastFrom[n / items] = n;
+      }
+    }
+    boolean allTaken = true;
+    for (boolean b : taken) {
+      allTaken = allTaken && b;
+    }
+    t.checkExpect(duplicates, false);
+    t.checkExpect(allTaken, true);
+    t.checkExpect(inOrder, true);
+    t.checkExpect(deque.size(), 0);
+    t.checkExpect(deque.poll(), null);
+  }
+
+  // tests for the WorkStealingDeque on one thread
+  void testWorkStealingDeque(Tester t) {
+    WorkStealingDeque<String> d = new WorkStealingDeque<String>();
+    t.checkExpect(d.removeFromTail(), null);
+    t.checkExpect(d.steal(), null);
+    for (int i = 0; i < 100; i += 1) {
+      d.addAtTail("s" + i);
+    }
+    t.checkExpect(d.size(), 100);
+    t.checkExpect(d.items.length(), 128);
+    t.checkExpect(d.steal(), "s0");
+    t.checkExpect(d.removeFromTail(), "s99");
+    t.checkExpect(d.steal(), "s1");
+    t.checkExpect(d.size(), 97);
+    while (d.size() > 1) {
+      d.removeFromTail();
+    }
+    t.checkExpect(d.removeFromTail(), "s2");
+    t.checkExpect(d.removeFromTail(), null);
+    t.checkExpect(d.size(), 0);
+    boolean empty = true;
+    for (int i = 0; i < d.items.length(); i += 1) {
+      empty = empty && d.items.get(i) == null;
+    }
+    t.checkExpect(empty, true);
+
+    WorkStealingDeque<String> few = new WorkStealingDeque<String>();
+    few.addAtTail("a");
+    few.addAtTail("b");
+    few.addAtTail("c");
+    t.checkExpect(few.removeFromTail(), "c");
+    t.checkExpect(few.items.get(2), null);
+    t.checkExpect(few.steal(), "a");
+    t.checkExpect(few.items.get(0), "a");
+    few.addAtTail("d");
+    t.checkExpect(few.items.get(0), null);
+    t.checkExpect(few.steal(), "b");
+    t.checkExpect(few.steal(), "d");
+    t.checkExpect(few.removeFromTail(), null);
+    t.checkExpect(few.items.get(1), null);
+    t.checkExpect(few.items.get(2), null);
+  }
+
+  // tests that thieves and the owner together take every item exactly once
+  void testWorkStealingDequeThreads(Tester t) {
+    int items = 200000;
+    WorkStealingDeque<Integer> d = new WorkStealingDeque<Integer>();
+    AtomicInteger[] taken = new AtomicInteger[items];
+    for (int i = 0; i < items; i += 1) {
+      taken[i] = new AtomicInteger(0);
+    }
+    AtomicInteger remaining = new AtomicInteger(items);
+    ArrayList<Thread> thieves = new ArrayList<Thread>();
+    for (int i = 0; i < 3; i += 1) {
+      thieves.add(new Thread() {
+        public void run() {
+          while (remaining.get() > 0) {
+            Integer n = d.steal();
+            if (n != null) {
+              taken[n].incrementAndGet();
+              remaining.decrementAndGet();
+            }
+          }
+        }
+      });
+    }
+    for (Thread th : thieves) {
+      th.start();
+    }
+    for (int i = 0; i < items; i += 1) {
+      d.addAtTail(i);
+      if (i % 3 == 0) {
+        Integer n = d.removeFromTail();
+        if (n != null) {
+          taken[n].incrementAndGet();
+          remaining.decrementAndGet();
+        }
+      }
+    }
+    while (remaining.get() > 0) {
+      Integer n = d.removeFromTail();
+      if (n != null) {
+        taken[n].incrementAndGet();
+        remaining.decrementAndGet();
+      }
+    }
+    try {
+      for (Thread th : thieves) {
+        th.join();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    boolean once = true;
+    for (AtomicInteger n : taken) {
+      once = once && n.get() == 1;
+    }
+    t.checkExpect(once, true);
+    t.checkExpect(d.size(), 0);
+  }
+
+  // tests for the StealPool scheduler
+  void testStealPool(Tester t) {
+    StealPool pool = new StealPool(4);
+    t.checkExpect(pool.invoke(new FibTask(5)), 5);
+    t.checkExpect(pool.invoke(new FibTask(25)), 75025);
+    t.checkExpect(pool.invoke(new FibTask(30)), 832040);
+    pool.close();
+    StealPool single = new StealPool(1);
+    t.checkException(new IllegalStateException("Task failed"),
+        single, "invoke", new FailingTask(0));
+    t.checkException(new IllegalStateException("Task failed"),
+        single, "invoke", new FailingTask(3));
+    t.checkExpect(single.invoke(new FibTask(20)), 6765);
+    t.checkExpect(single.workers[0].isAlive(), true);
+    FibTask late = new FibTask(10);
+    single.submitted.addAtTail(late);
+    single.close();
+    try {
+      single.workers[0].join(10000);
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    t.checkExpect(single.workers[0].isAlive(), false);
+    t.checkExpect(late.done, true);
+    t.checkExpect(late.result, 55);
+    t.checkException(new IllegalStateException("The pool has been shut down"),
+        pool, "invoke", new FibTask(3));
+    t.checkException(new IllegalStateException("Can only fork inside a StealPool"),
+        new FibTask(3), "fork");
+    t.checkConstructorException(new IllegalArgumentException("A pool needs at least one worker"),
+        "StealPool", 0);
+  }
+
+  // tests for the BoundedDeque on one thread
+  void testBoundedDeque(Tester t) {
+    BoundedDeque<String> d = new BoundedDeque<String>(3);
+    t.checkExpect(d.poll(), null);
+    t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+        d, "removeFromHead");
+    d.addAtTail("bcd");
+    d.addAtHead("abc");
+    d.addAtTail("fish");
+    t.checkExpect(d.size(), 3);
+    t.checkException(new RuntimeException("Cannot add to a full deque"),
+        d, "addAtTail", "cde");
+    t.checkException(new IllegalArgumentException("Cannot add null to a bounded deque"),
+        d, "addAtHead", (Object) null);
+    t.checkExpect(d.findData(this.IsFour), "fish");
+    try {
+      t.checkExpect(d.put("cde", 10, TimeUnit.MILLISECONDS), false);
+      t.checkExpect(d.take(), "abc");
+      t.checkExpect(d.put("cde", 10, TimeUnit.MILLISECONDS), true);
+      ArrayList<String> batch = new ArrayList<String>();
+      t.checkExpect(d.drainTo(batch, 2), 2);
+      t.checkExpect(batch, new ArrayList<String>(Arrays.asList("bcd", "fish")));
+      t.checkExpect(d.removeFromTail(), "cde");
+      t.checkExpect(d.take(10, TimeUnit.MILLISECONDS), null);
+      t.checkExpect(d.drainTo(batch, 5), 0);
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // tests that a fast producer waits for a slow consumer of a BoundedDeque
+  void testBoundedDequeThreads(Tester t) {
+    BoundedDeque<Integer> d = new BoundedDeque<Integer>(8);
+    int items = 10000;
+    AtomicInteger largest = new AtomicInteger(0);
+    Thread producer = new Thread() {
+      public void run() {
+        try {
+          for (int i = 0; i < items; i += 1) {
+            d.put(i);
+            largest.accumulateAndGet(d.size(), Math::max);
+          }
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    producer.start();
+    ArrayList<Integer> seen = new ArrayList<Integer>();
+    try {
+      while (seen.size() < items) {
+        Integer n = d.take(1, TimeUnit.SECONDS);
+        if (n != null) {
+          seen.add(n);
+        }
+        d.drainTo(seen, 4);
+      }
+      producer.join();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    boolean inOrder = true;
+    for (int i = 0; i < items; i += 1) {
+      inOrder = inOrder && seen.get(i) == i;
+    }
+    t.checkExpect(seen.size(), items);
+    t.checkExpect(inOrder, true);
+    t.checkExpect(largest.get() <= 8, true);
+  }
+
+  // tests for appendAll
+  void testAppendAll(Tester t) {
+    initDeques();
+    Sentinel<String> oldHeader = this.deque3.header;
+    this.deque2.appendAll(this.deque3);
+    t.checkExpect(this.deque2.size(), 8);
+    t.checkExpect(this.deque3.size(), 0);
+    t.checkExpect(this.deque3.header == oldHeader, false);
+    t.checkExpect(this.def.next, this.dog);
+    t.checkExpect(this.dog.prev, this.def);
+    t.checkExpect(this.deque2.header.prev, this.horse);
+    t.checkExpect(this.horse.next, this.deque2.header);
+    t.checkExpect(this.deque2.find(this.IsFour), this.fish);
+    this.deque3.removeNode(this.cat);
+    t.checkExpect(this.deque2.size(), 8);
+    this.deque2.removeNode(this.cat);
+    t.checkExpect(this.deque2.size(), 7);
+    t.checkExpect(this.dog.next, this.fish);
+    this.deque3.addAtTail("emu");
+    this.deque2.appendAll(this.deque3);
+    this.deque2.appendAll(this.deque1);
+    t.checkExpect(this.deque2.size(), 8);
+    t.checkExpect(this.deque2.removeFromTail(), "emu");
+    t.checkExpect(this.deque2.removeFromHead(), "abc");
+    t.checkException(new IllegalArgumentException("Cannot append a deque to itself"),
+        this.deque2, "appendAll", this.deque2);
+  }
+
+  // tests for splitAt
+  void testSplitAt(Tester t) {
+    initDeques();
+    Deque<String> rest = this.deque2.splitAt(this.cde);
+    t.checkExpect(this.deque2.size(), 2);
+    t.checkExpect(rest.size(), 2);
+    t.checkExpect(this.bcd.next, this.deque2.header);
+    t.checkExpect(this.deque2.header.prev, this.bcd);
+    t.checkExpect(rest.header.next, this.cde);
+    t.checkExpect(this.cde.prev, rest.header);
+    t.checkExpect(this.def.next, rest.header);
+    this.deque2.removeNode(this.def);
+    t.checkExpect(rest.size(), 2);
+    rest.removeNode(this.def);
+    t.checkExpect(rest.size(), 1);
+    Deque<String> all = this.deque3.splitAt(this.dog);
+    t.checkExpect(this.deque3.size(), 0);
+    t.checkExpect(this.deque3.header.next, this.deque3.header);
+    t.checkExpect(all.size(), 4);
+    t.checkException(new IllegalArgumentException("Can only split at a node of this deque"),
+        this.deque2, "splitAt", this.dog);
+    t.checkException(new IllegalArgumentException("Can only split at a node of this deque"),
+        this.deque2, "splitAt", this.deque2.header);
+  }
+
+  // tests for addAllAtTail
+  void testAddAllAtTail(Tester t) {
+    initDeques();
+    this.deque2.addAllAtTail(new ArrayList<String>(Arrays.asList("efg", "fish")));
+    this.deque1.addAllAtTail(new ArrayList<String>(Arrays.asList("ant")));
+    this.deque3.addAllAtTail(new ArrayList<String>());
+    t.checkExpect(this.deque2.size(), 6);
+    t.checkExpect(this.deque1.size(), 1);
+    t.checkExpect(this.deque3.size(), 4);
+    t.checkExpect(this.def.next.next, this.deque2.header.prev);
+    t.checkExpect(this.deque2.find(this.IsFour), this.deque2.header.prev);
+    t.checkExpect(this.deque2.removeFromTail(), "fish");
+    t.checkExpect(this.deque2.removeFromTail(), "efg");
+    t.checkExpect(this.deque2.header.prev, this.def);
+    t.checkExpect(this.deque1.removeFromHead(), "ant");
+  }
+
+  // tests for the IndexedDeque against an ArrayList doing the same work
+  void testIndexedDeque(Tester t) {
+    IndexedDeque<String> d = new IndexedDeque<String>();
+    ArrayList<String> expected = new ArrayList<String>();
+    Random rand = new Random(2510);
+    boolean same = true;
+    for (int i = 0; i < 20000; i += 1) {
+      int choice = rand.nextInt(6);
+      if (choice < 3 || expected.isEmpty()) {
+        int index = rand.nextInt(expected.size() + 1);
+        d.add(index, "s" + i);
+        expected.add(index, "s" + i);
+      }
+      else if (choice == 3) {
+        int index = rand.nextInt(expected.size());
+        same = same && d.removeAt(index).equals(expected.remove(index));
+      }
+      else if (choice == 4) {
+        int index = rand.nextInt(expected.size());
+        ANode<String> node = d.nodeAt(index);
+        same = same && d.indexOf(node) == index && node.value().equals(expected.get(index));
+        d.removeNode(node);
+        expected.remove(index);
+      }
+      else {
+        int index = rand.nextInt(expected.size());
+        same = same && d.get(index).equals(expected.get(index));
+      }
+      same = same && d.size() == expected.size();
+    }
+    t.checkExpect(same, true);
+    int index = 0;
+    for (ANode<String> n = d.list.header.next; n != d.list.header; n = n.next) {
+      same = same && d.indexOf(n) == index && n.value().equals(expected.get(index));
+      index += 1;
+    }
+    t.checkExpect(same, true);
+  }
+
+  // tests the IDeque operations and errors of the IndexedDeque
+  void testIndexedDequeOps(Tester t) {
+    this.checkIDeque(t, new IndexedDeque<String>());
+    IndexedDeque<String> d = new IndexedDeque<String>();
+    d.addAtTail("abc");
+    d.addAtTail("bcd");
+    d.addAtHead("fish");
+    t.checkExpect(d.find(this.IsBCD), d.nodeAt(2));
+    t.checkExpect(d.indexOf(d.find(this.IsFour)), 0);
+    t.checkExpect(d.indexOf(d.list.header), -1);
+    t.checkExpect(d.indexOf(this.bcd), -1);
+    d.removeNode(this.bcd);
+    t.checkExpect(d.size(), 3);
+    t.checkException(new IndexOutOfBoundsException("No item at position 3"),
+        d, "get", 3);
+    t.checkException(new IndexOutOfBoundsException("Cannot add at position 4"),
+        d, "add", 4, "x");
+  }
+
+  // tests that a Deque can be iterated and streamed
+  void testIterable(Tester t) {
+    initDeques();
+    ArrayList<String> seen = new ArrayList<String>();
+    for (String s : this.deque2) {
+      seen.add(s);
+    }
+    t.checkExpect(seen, new ArrayList<String>(Arrays.asList("abc", "bcd", "cde", "def")));
+    t.checkExpect(this.deque1.iterator().hasNext(), false);
+    t.checkException(new NoSuchElementException("No more items in the deque"),
+        this.deque1.iterator(), "next");
+    t.checkExpect(this.deque3.stream().collect(Collectors.joining(",")),
+        "dog,cat,fish,horse");
+    t.checkExpect(this.deque3.stream().parallel().collect(Collectors.joining(",")),
+        "dog,cat,fish,horse");
+    Spliterator<String> second = this.deque2.spliterator();
+    Spliterator<String> first = second.trySplit();
+    t.checkExpect(first.estimateSize(), 2L);
+    t.checkExpect(second.estimateSize(), 2L);
+    ArrayList<String> parts = new ArrayList<String>();
+    first.forEachRemaining(parts::add);
+    second.tryAdvance(parts::add);
+    t.checkExpect(parts, new ArrayList<String>(Arrays.asList("abc", "bcd", "cde")));
+    t.checkExpect(second.trySplit(), null);
+  }
+
+  // tests for findAll and count, on small and parallel-sized deques
+  void testFindAllCount(Tester t) {
+    initDeques();
+    this.deque3.addAtTail("bird");
+    Deque<String> fours = this.deque3.findAll(this.IsFour);
+    t.checkExpect(fours.size(), 2);
+    t.checkExpect(fours.removeFromHead(), "fish");
+    t.checkExpect(fours.removeFromHead(), "bird");
+    t.checkExpect(this.deque3.count(this.IsFour), 2L);
+    t.checkExpect(this.deque1.count(this.IsFour), 0L);
+    t.checkExpect(this.deque1.findAll(this.IsFour).size(), 0);
+    Deque<Integer> numbers = new Deque<Integer>();
+    for (int i = 0; i < 20000; i += 1) {
+      numbers.addAtTail(i);
+    }
+    t.checkExpect(numbers.count(new IsSlowSeventh()), 2858L);
+    Deque<Integer> sevens = numbers.findAll(new IsSlowSeventh());
+    t.checkExpect(sevens.size(), 2858);
+    t.checkExpect(sevens.removeFromHead(), 0);
+    t.checkExpect(sevens.removeFromHead(), 7);
+    t.checkExpect(sevens.removeFromTail(), 19999);
+  }
+
+  // tests for the OffHeapDeque
+  void testOffHeapDeque(Tester t) {
+    this.checkIDeque(t, new OffHeapDeque<String>(new AsciiCodec(8), 256));
+    OffHeapDeque<String> d = new OffHeapDeque<String>(new AsciiCodec(5), 3);
+    t.checkExpect(d.capacity, 4);
+    t.checkExpect(d.chunks.length, 1);
+    d.addAtTail("bcd");
+    d.addAtHead("abc");
+    d.addAtTail("");
+    d.addAtTail("horse");
+    t.checkException(new RuntimeException("Cannot add to a full deque"),
+        d, "addAtTail", "cat");
+    t.checkException(new IllegalArgumentException("String is longer than 5"),
+        new OffHeapDeque<String>(new AsciiCodec(5), 4), "addAtTail", "giraffe");
+    t.checkExpect(d.get(1), "bcd");
+    t.checkExpect(d.get(2), "");
+    t.checkExpect(d.removeFromTail(), "horse");
+    t.checkExpect(d.removeFromHead(), "abc");
+    t.checkExpect(d.size(), 2);
+    t.checkConstructorException(new IllegalArgumentException("Capacity must be between 1 and 2^30"),
+        "OffHeapDeque", new LongCodec(), 0);
+
+    OffHeapDeque<Long> longs = new OffHeapDeque<Long>(new LongCodec(), 1 << 20);
+    for (long i = 0; i < (1 << 20); i += 1) {
+      longs.addAtTail(i * 3);
+    }
+    t.checkExpect(longs.size(), 1 << 20);
+    t.checkExpect(longs.get(1000), 3000L);
+    t.checkExpect(longs.removeFromTail(), ((1L << 20) - 1) * 3);
+    t.checkExpect(longs.removeFromHead(), 0L);
+    t.checkExpect(longs.chunks[0].isDirect(), true);
+  }
+
+  // deletes the given directory and the files in it
+  void deleteDir(Path dir) throws IOException {
+    for (Path p : Files.list(dir).toArray(Path[]::new)) {
+      Files.delete(p);
+    }
+    Files.delete(dir);
+  }
+
+  // tests for the PersistentDeque, including reopening and rolling segments
+  void testPersistentDeque(Tester t) {
+    try {
+      Path dir = Files.createTempDirectory("deque-test");
+      PersistentDeque<String> d = new PersistentDeque<String>(dir, new Utf8Codec(), 64, 1);
+      t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+          d, "removeFromHead");
+      t.checkException(new IllegalArgumentException("Record is larger than a segment"),
+          d, "addAtTail", "this string is much too long to fit in a segment of 64 bytes");
+      for (int i = 0; i < 20; i += 1) {
+        d.addAtTail("item " + i);
+      }
+      t.checkExpect(d.size(), 20L);
+      t.checkExpect(d.tailSegment > 0, true);
+      t.checkExpect(d.removeFromHead(), "item 0");
+      t.checkExpect(d.findData(new IsFour()), null);
+      t.checkExpect(d.findData(new IPred<String>() {
+        public boolean apply(String s) {
+          return s.endsWith("7");
+        }
+      }), "item 7");
+      for (int i = 1; i < 10; i += 1) {
+        d.removeFromHead();
+      }
+      t.checkExpect(Files.exists(d.segmentPath(0)), false);
+      t.checkExpect(d.header.getInt(8), d.headSegment);
+      t.checkExpect(d.header.getInt(12), d.headOffset);
+      d.close();
+
+      PersistentDeque<String> reopened =
+          new PersistentDeque<String>(dir, new Utf8Codec(), 4096, 0);
+      t.checkExpect(reopened.segmentSize, 64);
+      t.checkExpect(reopened.size(), 10L);
+      t.checkExpect(reopened.removeFromHead(), "item 10");
+      t.checkExpect(reopened.mapped.containsKey(reopened.headSegment - 1), false);
+      t.checkExpect(reopened.findData(new IsFour()), null);
+      t.checkExpect(reopened.mapped.size(),
+          reopened.tailSegment - reopened.headSegment + 1);
+      t.checkExpect(reopened.segment(reopened.headSegment + 1)
+          == reopened.segment(reopened.headSegment + 1), true);
+      reopened.addAtTail("");
+      reopened.addAtTail("last");
+      reopened.close();
+      t.checkExpect(reopened.mapped.isEmpty(), true);
+      t.checkExpect(reopened.tailBuffer, null);
+      t.checkException(new IllegalStateException("The deque has been closed"),
+          reopened, "size");
+      t.checkException(new IllegalStateException("The deque has been closed"),
+          reopened, "addAtTail", "late");
+      t.checkException(new IllegalStateException("The deque has been closed"),
+          reopened, "removeFromHead");
+      t.checkException(new IllegalStateException("The deque has been closed"),
+          reopened, "findData", new IsFour());
+      t.checkException(new IllegalStateException("The deque has been closed"),
+          reopened, "close");
+      this.deleteDir(dir);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // tests that records written after the header was last saved are found
+  // again, and that a torn record stops the scan
+  void testPersistentDequeRecovery(Tester t) {
+    try {
+      Path dir = Files.createTempDirectory("deque-test");
+      PersistentDeque<String> d = new PersistentDeque<String>(dir, new Utf8Codec(), 64, 0);
+      d.addAtTail("abc");
+      d.addAtTail("bcd");
+      int tailSegment = d.tailSegment;
+      int tailOffset = d.tailOffset;
+      for (int i = 0; i < 8; i += 1) {
+        d.addAtTail("lost " + i);
+      }
+      d.header.putInt(16, tailSegment);
+      d.header.putInt(20, tailOffset);
+      d.header.putLong(24, 2);
+      d.close();
+
+      PersistentDeque<String> recovered =
+          new PersistentDeque<String>(dir, new Utf8Codec(), 64, 0);
+      t.checkExpect(recovered.size(), 10L);
+      t.checkExpect(recovered.removeFromHead(), "abc");
+      t.checkExpect(recovered.findData(new IPred<String>() {
+        public boolean apply(String s) {
+          return s.equals("lost 7");
+        }
+      }), "lost 7");
+      recovered.tailBuffer.putInt(recovered.tailOffset, Integer.MAX_VALUE);
+      t.checkExpect(recovered.recordAt(recovered.tailBuffer, recovered.tailOffset), -1);
+      recovered.tailBuffer.putInt(recovered.tailOffset, Integer.MIN_VALUE);
+      t.checkExpect(recovered.recordAt(recovered.tailBuffer, recovered.tailOffset), -1);
+      recovered.tailBuffer.putInt(recovered.tailOffset, 5);
+      recovered.tailBuffer.putInt(recovered.tailOffset + 4, 12345);
+      recovered.close();
+
+      PersistentDeque<String> torn = new PersistentDeque<String>(dir, new Utf8Codec(), 64, 0);
+      t.checkExpect(torn.size(), 9L);
+      torn.close();
+      this.deleteDir(dir);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // tests for peekHead and peekTail
+  void testPeek(Tester t) {
+    initDeques();
+    t.checkExpect(this.deque2.peekHead(), "abc");
+    t.checkExpect(this.deque2.peekTail(), "def");
+    t.checkExpect(this.deque2.size(), 4);
+    t.checkException(new RuntimeException("Cannot look into an empty deque"),
+        this.deque1, "peekHead");
+    t.checkException(new RuntimeException("Cannot look into an empty deque"),
+        this.deque1, "peekTail");
+  }
+
+  // tests the MonotonicWindow against walking the window for every answer
+  void testMonotonicWindow(Tester t) {
+    MonotonicWindow<Integer> w = new MonotonicWindow<Integer>(Integer::compare, 3);
+    w.push(5);
+    w.push(1);
+    w.push(3);
+    t.checkExpect(w.min(), 1);
+    t.checkExpect(w.max(), 5);
+    w.push(2);
+    t.checkExpect(w.min(), 1);
+    t.checkExpect(w.max(), 3);
+    w.push(4);
+    t.checkExpect(w.min(), 2);
+    t.checkExpect(w.size(), 3);
+    t.checkExpect(w.evict(), 3);
+    t.checkExpect(w.max(), 4);
+
+    Random rand = new Random(2510);
+    MonotonicWindow<Integer> manual = new MonotonicWindow<Integer>(Integer::compare, 0);
+    ArrayList<Integer> expected = new ArrayList<Integer>();
+    boolean same = true;
+    for (int i = 0; i < 5000; i += 1) {
+      if (expected.isEmpty() || rand.nextInt(3) > 0) {
+        int n = rand.nextInt(20);
+        manual.push(n);
+        expected.add(n);
+      }
+      else {
+        same = same && manual.evict().equals(expected.remove(0));
+      }
+      if (!expected.isEmpty()) {
+        int min = expected.get(0);
+        int max = expected.get(0);
+        for (int n : expected) {
+          min = Math.min(min, n);
+          max = Math.max(max, n);
+        }
+        same = same && manual.min() == min && manual.max() == max;
+      }
+    }
+    t.checkExpect(same, true);
+    t.checkConstructorException(new IllegalArgumentException("Width cannot be negative"),
+        "MonotonicWindow", Comparator.naturalOrder(), -1);
+  }
+
+  // tests that a MeteredDeque measures only while enabled
+  void testMeteredDeque(Tester t) {
+    MeteredDeque<String> d = new MeteredDeque<String>(new Deque<String>());
+    this.checkIDeque(t, d);
+    t.checkExpect(d.count(MeteredDeque.ADD_AT_TAIL), 0L);
+    t.checkExpect(d.addLatency.total(), 0L);
+    d.enabled = true;
+    d.addAtTail("abc");
+    d.addAtTail("bcd");
+    d.addAtHead("fish");
+    d.removeFromTail();
+    d.findData(this.IsFour);
+    d.findData(this.IsBCD);
+    t.checkExpect(d.count(MeteredDeque.ADD_AT_TAIL), 2L);
+    t.checkExpect(d.count(MeteredDeque.ADD_AT_HEAD), 1L);
+    t.checkExpect(d.count(MeteredDeque.REMOVE_FROM_TAIL), 1L);
+    t.checkExpect(d.count(MeteredDeque.REMOVE_FROM_HEAD), 0L);
+    t.checkExpect(d.count(MeteredDeque.FIND), 2L);
+    t.checkExpect(d.size(), 2);
+    t.checkExpect(d.highWater.get(), 3);
+    t.checkExpect(d.addLatency.total(), 3L);
+    t.checkExpect(d.removeLatency.total(), 1L);
+    t.checkExpect(d.findLatency.total(), 2L);
+    d.reset();
+    t.checkExpect(d.count(MeteredDeque.ADD_AT_TAIL), 0L);
+    t.checkExpect(d.highWater.get(), 2);
+  }
+
+  // tests for the LatencyHistogram
+  void testLatencyHistogram(Tester t) {
+    LatencyHistogram h = new LatencyHistogram();
+    t.checkExpect(h.percentile(50), 0L);
+    boolean roundTrip = true;
+    for (long v = 0; v < 100000; v += 7) {
+      int b = h.bucket(v);
+      roundTrip = roundTrip && h.lowest(b) <= v && v < h.lowest(b + 1);
+    }
+    t.checkExpect(roundTrip, true);
+    t.checkExpect(h.bucket(Long.MAX_VALUE) < h.counts.length(), true);
+    for (long v = 1; v <= 1000; v += 1) {
+      h.record(v);
+    }
+    t.checkExpect(h.total(), 1000L);
+    t.checkExpect(h.max.get(), 1000L);
+    t.checkExpect(h.percentile(0.1), 1L);
+    t.checkExpect(Math.abs(h.percentile(50) - 500) <= 32, true);
+    t.checkExpect(Math.abs(h.percentile(99) - 990) <= 64, true);
+    t.checkExpect(h.percentile(100), 1000L);
+  }
+
+  // tests that a MeteredDeque's measurements can be read over JMX
+  void testMeteredDequeJmx(Tester t) {
+    MeteredDeque<String> d = new MeteredDeque<String>(new RingDeque<String>());
+    try {
+      ObjectName name = d.register("deque:type=MeteredDeque,name=test");
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.setAttribute(name, new Attribute("Enabled", true));
+      d.addAtTail("abc");
+      d.addAtTail("bcd");
+      d.removeFromHead();
+      t.checkExpect(server.getAttribute(name, "AddAtTailCount"), 2L);
+      t.checkExpect(server.getAttribute(name, "RemoveFromHeadCount"), 1L);
+      t.checkExpect(server.getAttribute(name, "Depth"), 1);
+      t.checkExpect(server.getAttribute(name, "HighWater"), 2);
+      t.checkExpect((Long) server.getAttribute(name, "AddLatencyMax") >= 0, true);
+      boolean refused = false;
+      try {
+        server.setAttribute(name, new Attribute("Enabled", "false"));
+      }
+      catch (InvalidAttributeValueException e) {
+        refused = e.getMessage().equals("Enabled must be a Boolean");
+      }
+      t.checkExpect(refused, true);
+      AttributeList some = new AttributeList();
+      some.add(new Attribute("Enabled", 0));
+      t.checkExpect(server.setAttributes(name, some).size(), 0);
+      t.checkExpect(server.getAttribute(name, "Enabled"), true);
+      server.invoke(name, "reset", null, null);
+      t.checkExpect(server.getAttribute(name, "AddAtTailCount"), 0L);
+      server.unregisterMBean(name);
+    }
+    catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // tests that find with an EqualsPred uses the hash index and agrees with a walk
+  void testHashIndex(Tester t) {
+    initDeques();
+    this.deque2.enableIndex();
+    t.checkExpect(this.deque2.find(this.IsBCD), this.bcd);
+    t.checkExpect(this.deque2.find(new EqualsPred<String>("zzz")), this.deque2.header);
+    t.checkExpect(this.deque2.find(this.IsFour), this.deque2.header);
+    this.deque2.addAtTail("bcd");
+    ANode<String> lastBcd = this.deque2.header.prev;
+    this.deque2.addAtHead("bcd");
+    ANode<String> firstBcd = this.deque2.header.next;
+    t.checkExpect(this.deque2.find(this.IsBCD) == firstBcd, true);
+    this.deque2.removeFromHead();
+    t.checkExpect(this.deque2.find(this.IsBCD), this.bcd);
+    this.deque2.removeNode(this.bcd);
+    t.checkExpect(this.deque2.find(this.IsBCD) == lastBcd, true);
+    this.deque2.removeFromTail();
+    t.checkExpect(this.deque2.find(this.IsBCD), this.deque2.header);
+    t.checkExpect(this.deque2.index.buckets.containsKey("bcd"), false);
+    t.checkExpect(this.deque2.index.size(), 3);
+
+    this.deque2.add("bcd", 1);
+    t.checkExpect(this.deque2.index.stale, false);
+    t.checkExpect(this.deque2.find(this.IsBCD), this.abc.next);
+    t.checkException(new IndexOutOfBoundsException("Cannot add at position 5"),
+        this.deque2, "add", "bcd", 5);
+    this.deque2.appendAll(this.deque3);
+    t.checkExpect(this.deque2.find(new EqualsPred<String>("horse")), this.horse);
+    this.deque2.addAllAtTail(new ArrayList<String>(Arrays.asList("emu", "emu")));
+    t.checkExpect(this.deque2.find(new EqualsPred<String>("emu")),
+        this.horse.next);
+
+    Random rand = new Random(2510);
+    Deque<Integer> indexed = new Deque<Integer>();
+    Deque<Integer> plain = new Deque<Integer>();
+    indexed.enableIndex();
+    boolean same = true;
+    for (int i = 0; i < 5000; i += 1) {
+      int n = rand.nextInt(50);
+      int choice = rand.nextInt(5);
+      if (choice == 0) {
+        indexed.addAtHead(n);
+        plain.addAtHead(n);
+      }
+      else if (choice == 1) {
+        indexed.addAtTail(n);
+        plain.addAtTail(n);
+      }
+      else if (choice == 2 && plain.size() > 0) {
+        indexed.removeFromHead();
+        plain.removeFromHead();
+      }
+      else if (choice == 3 && plain.size() > 0) {
+        indexed.removeFromTail();
+        plain.removeFromTail();
+      }
+      else {
+        ANode<Integer> found = indexed.find(new EqualsPred<Integer>(n));
+        ANode<Integer> walked = indexed.header.next.findHelper(new EqualsPred<Integer>(n));
+        same = same && found == walked;
+        if (found != indexed.header) {
+          indexed.removeNode(found);
+          plain.removeNode(plain.find(new EqualsPred<Integer>(n)));
+        }
+      }
+    }
+    Iterator<Integer> other = plain.iterator();
+    for (Integer n : indexed) {
+      same = same && n.equals(other.next());
+    }
+    t.checkExpect(same, true);
+
+    DequeCursor<Integer> c = indexed.cursor();
+    for (int i = 0; i < 2000; i += 1) {
+      int n = rand.nextInt(50);
+      if (rand.nextBoolean()) {
+        c.insertBefore(n);
+      }
+      else {
+        c.insertAfter(n);
+      }
+      for (int steps = rand.nextInt(5); steps > 0; steps -= 1) {
+        c.moveNext();
+      }
+      int m = rand.nextInt(50);
+      same = same && indexed.find(new EqualsPred<Integer>(m))
+          == indexed.header.next.findHelper(new EqualsPred<Integer>(m));
+    }
+    t.checkExpect(indexed.index.stale, false);
+    t.checkExpect(same, true);
+    while (indexed.size() > 0) {
+      ANode<Integer> found = indexed.find(new EqualsPred<Integer>(indexed.peekHead()));
+      same = same && found == indexed.header.next;
+      indexed.removeNode(found);
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(indexed.index.size(), 0);
+  }
+
+  // tests that every version of a BankersDeque keeps its own items
+  void testBankersDeque(Tester t) {
+    BankersDeque<String> empty = new BankersDeque<String>();
+    BankersDeque<String> one = empty.addAtTail("bcd");
+    BankersDeque<String> two = one.addAtHead("abc");
+    BankersDeque<String> three = two.addAtTail("cde");
+    t.checkExpect(empty.size(), 0);
+    t.checkExpect(one.peekHead(), "bcd");
+    t.checkExpect(one.peekTail(), "bcd");
+    t.checkExpect(two.peekHead(), "abc");
+    t.checkExpect(three.peekTail(), "cde");
+    t.checkExpect(three.dropHead().peekHead(), "bcd");
+    t.checkExpect(three.dropTail().dropTail().peekTail(), "abc");
+    t.checkExpect(three.findData(this.IsBCD), "bcd");
+    t.checkExpect(two.size(), 2);
+    t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+        empty, "dropHead");
+    t.checkException(new RuntimeException("Cannot look into an empty deque"),
+        empty, "peekTail");
+
+    Random rand = new Random(2510);
+    ArrayList<BankersDeque<Integer>> versions = new ArrayList<BankersDeque<Integer>>();
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    versions.add(new BankersDeque<Integer>());
+    expected.add(new ArrayList<Integer>());
+    boolean same = true;
+    for (int i = 0; i < 3000; i += 1) {
+      int from = rand.nextInt(versions.size());
+      BankersDeque<Integer> d = versions.get(from);
+      ArrayList<Integer> list = new ArrayList<Integer>(expected.get(from));
+      int choice = rand.nextInt(4);
+      if (choice == 0 || list.isEmpty()) {
+        d = d.addAtTail(i);
+        list.add(i);
+      }
+      else if (choice == 1) {
+        d = d.addAtHead(i);
+        list.add(0, i);
+      }
+      else if (choice == 2) {
+        same = same && d.peekHead().equals(list.remove(0));
+        d = d.dropHead();
+      }
+      else {
+        same = same && d.peekTail().equals(list.remove(list.size() - 1));
+        d = d.dropTail();
+      }
+      versions.add(d);
+      expected.add(list);
+    }
+    for (int i = 0; i < versions.size(); i += 1) {
+      ArrayList<Integer> items = new ArrayList<Integer>();
+      for (Integer n : versions.get(i)) {
+        items.add(n);
+      }
+      same = same && items.equals(expected.get(i)) && versions.get(i).size() == items.size();
+    }
+    t.checkExpect(same, true);
+
+    BankersDeque<Integer> big = new BankersDeque<Integer>();
+    for (int i = 0; i < 1000000; i += 1) {
+      big = big.addAtTail(i);
+    }
+    long sum = 0;
+    while (big.size() > 0) {
+      sum += big.peekHead();
+      big = big.dropHead();
+    }
+    t.checkExpect(sum, 499999500000L);
+  }
+
+  // tests that a SnapshotDeque's snapshots stay fixed while it changes
+  void testSnapshotDeque(Tester t) {
+    this.checkIDeque(t, new SnapshotDeque<String>());
+    t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+        new SnapshotDeque<String>(), "removeFromHead");
+    t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+        new SnapshotDeque<String>(), "removeFromTail");
+    SnapshotDeque<Integer> d = new SnapshotDeque<Integer>();
+    for (int i = 0; i < 100; i += 1) {
+      d.addAtTail(i);
+    }
+    BankersDeque<Integer> before = d.snapshot();
+    Thread writer = new Thread(() -> {
+      for (int i = 0; i < 10000; i += 1) {
+        d.addAtTail(100 + i);
+        d.removeFromHead();
+      }
+    });
+    writer.start();
+    boolean steady = true;
+    for (int round = 0; round < 50; round += 1) {
+      int expect = 0;
+      for (Integer n : before) {
+        steady = steady && n == expect;
+        expect += 1;
+      }
+      steady = steady && expect == 100;
+    }
+    try {
+      writer.join();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    t.checkExpect(steady, true);
+    t.checkExpect(d.size(), 100);
+    t.checkExpect(d.snapshot().peekHead(), 10000);
+    t.checkExpect(before.peekHead(), 0);
+  }
+
+  // tests moving, adding and removing with a cursor
+  void testDequeCursor(Tester t) {
+    this.initDeques();
+    DequeCursor<String> c = this.deque2.cursor();
+    t.checkExpect(c.get(), "abc");
+    c.moveNext();
+    c.insertBefore("abd");
+    c.insertAfter("bce");
+    t.checkExpect(c.get(), "bcd");
+    t.checkExpect(c.remove(), "bcd");
+    t.checkExpect(c.get(), "bce");
+    c.movePrev();
+    t.checkExpect(c.get(), "abd");
+    c.moveToHead();
+    t.checkExpect(this.deque2.peekHead(), "abd");
+    t.checkExpect(c.get(), "abd");
+    c.movePrev();
+    t.checkExpect(c.atItem(), false);
+    t.checkException(new NoSuchElementException("The cursor is not at an item"), c, "get");
+    t.checkException(new NoSuchElementException("The cursor is not at an item"), c, "remove");
+    c.insertBefore("fgh");
+    c.insertAfter("aaa");
+    ArrayList<String> items = new ArrayList<String>();
+    for (String s : this.deque2) {
+      items.add(s);
+    }
+    t.checkExpect(items, new ArrayList<String>(Arrays.asList(
+        "aaa", "abd", "abc", "bce", "cde", "def", "fgh")));
+    t.checkExpect(this.deque2.size(), 7);
+    t.checkException(new IllegalArgumentException(
+        "Can only put a cursor on a node of this deque"), this.deque2, "cursorAt", this.cat);
+  }
+
+  // tests a least-recently-used list that promotes entries with moveToHead
+  void testMoveToHead(Tester t) {
+    Deque<String> lru = new Deque<String>(4);
+    lru.enableIndex();
+    String[] requests = {"a", "b", "c", "a", "d", "b", "e", "a", "c"};
+    for (String key : requests) {
+      ANode<String> hit = lru.find(new EqualsPred<String>(key));
+      if (hit != lru.header) {
+        lru.moveToHead(hit);
+      }
+      else {
+        if (lru.size() == 3) {
+          lru.removeFromTail();
+        }
+        lru.addAtHead(key);
+      }
+    }
+    ArrayList<String> items = new ArrayList<String>();
+    for (String s : lru) {
+      items.add(s);
+    }
+    t.checkExpect(items, new ArrayList<String>(Arrays.asList("c", "a", "e")));
+    lru.moveToTail(lru.header.next);
+    t.checkExpect(lru.peekTail(), "c");
+    t.checkExpect(lru.findData(new EqualsPred<String>("c")), "c");
+    t.checkExpect(lru.size(), 3);
+    this.initDeques();
+    t.checkException(new IllegalArgumentException("Can only move a node of this deque"),
+        this.deque2, "moveToHead", this.cat);
+  }
+
+  // tests adding, removing and finding in an UnrolledDeque
+  void testUnrolledDeque(Tester t) {
+    this.checkIDeque(t, new UnrolledDeque<String>());
+    UnrolledDeque<Integer> d = new UnrolledDeque<Integer>();
+    ArrayList<Integer> expected = new ArrayList<Integer>();
+    Random rand = new Random(19);
+    for (int i = 0; i < 5000; i += 1) {
+      if (rand.nextBoolean()) {
+        d.addAtHead(i);
+        expected.add(0, i);
+      }
+      else {
+        d.addAtTail(i);
+        expected.add(i);
+      }
+    }
+    boolean same = true;
+    for (int i = 0; i < 2000; i += 1) {
+      if (rand.nextBoolean()) {
+        same = same && d.removeFromHead().equals(expected.remove(0));
+      }
+      else {
+        same = same && d.removeFromTail().equals(expected.remove(expected.size() - 1));
+      }
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(d.size(), expected.size());
+    ArrayList<Integer> items = new ArrayList<Integer>();
+    for (Integer n : d) {
+      items.add(n);
+    }
+    t.checkExpect(items, expected);
+    while (d.size() > 0) {
+      d.removeFromTail();
+    }
+    t.checkExpect(d.head == d.tail, true);
+    t.checkException(new RuntimeException("Cannot remove from an empty deque"),
+        d, "removeFromHead");
+  }
+
+  // tests that UnrolledDeque handles stay valid while other items come and go
+  void testUnrolledHandles(Tester t) {
+    UnrolledDeque<Integer> d = new UnrolledDeque<Integer>();
+    for (int i = 0; i < 300; i += 1) {
+      d.addAtTail(i);
+    }
+    UnrolledHandle<Integer> h150 = d.find(x -> x == 150);
+    UnrolledHandle<Integer> h0 = d.find(x -> x == 0);
+    for (int i = 0; i < 100; i += 1) {
+      d.addAtHead(-1 - i);
+      d.removeFromTail();
+    }
+    t.checkExpect(h150.value(), 150);
+    d.removeNode(h150);
+    t.checkExpect(d.size(), 299);
+    t.checkExpect(d.findData(x -> x == 150), null);
+    d.removeNode(h150);
+    t.checkExpect(d.size(), 299);
+    t.checkExpect(h150.value(), null);
+    UnrolledDeque<Integer> other = new UnrolledDeque<Integer>();
+    other.addAtTail(0);
+    other.removeNode(h0);
+    t.checkExpect(other.size(), 1);
+    for (int i = 100; i < 200; i += 1) {
+      if (i != 150) {
+        d.removeNode(d.find(new EqualsPred<Integer>(i)));
+      }
+    }
+    t.checkExpect(d.size(), 200);
+    t.checkExpect(d.findData(x -> x >= 100 && x < 200), null);
+    int total = 0;
+    for (Integer n : d) {
+      total += n;
+    }
+    t.checkExpect(total, 4950 - 5050);
+
+    UnrolledDeque<Integer> reused = new UnrolledDeque<Integer>();
+    reused.addAtTail(1);
+    reused.addAtTail(2);
+    UnrolledHandle<Integer> h2 = reused.find(x -> x == 2);
+    reused.removeFromTail();
+    reused.addAtTail(3);
+    t.checkExpect(h2.slot, reused.find(x -> x == 3).slot);
+    t.checkExpect(h2.value(), null);
+    reused.removeNode(h2);
+    t.checkExpect(reused.size(), 2);
+    t.checkExpect(reused.findData(x -> x == 3), 3);
+    UnrolledHandle<Integer> h1 = reused.find(x -> x == 1);
+    reused.removeFromHead();
+    reused.addAtHead(4);
+    reused.removeNode(h1);
+    t.checkExpect(reused.size(), 2);
+    t.checkExpect(reused.removeFromHead(), 4);
+  }
+
+  // tests writing deques with a DequeSerializer and reading them back
+  void testDequeSerializer(Tester t) {
+    try {
+      Path dir = Files.createTempDirectory("deque-test");
+      Path file = dir.resolve("deque.bin");
+      DequeSerializer<String> serializer = new DequeSerializer<String>(new Utf8Codec(), 64);
+      Deque<String> d = new Deque<String>();
+      StringBuilder longItem = new StringBuilder();
+      for (int i = 0; i < 100; i += 1) {
+        longItem.append("\u00e9");
+      }
+      for (int i = 0; i < 500; i += 1) {
+        d.addAtTail(i == 250 ? longItem.toString() : "item " + i);
+      }
+      d.addAtTail("");
+      FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      long written = serializer.write(d, out);
+      out.close();
+      t.checkExpect(Files.size(file), written);
+
+      FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+      Deque<String> loaded = serializer.read(in);
+      in.close();
+      t.checkExpect(loaded.size(), 501);
+      ArrayList<String> before = new ArrayList<String>();
+      for (String s : d) {
+        before.add(s);
+      }
+      ArrayList<String> after = new ArrayList<String>();
+      for (String s : loaded) {
+        after.add(s);
+      }
+      t.checkExpect(after, before);
+
+      in = FileChannel.open(file, StandardOpenOption.READ);
+      RingDeque<String> ring = new RingDeque<String>();
+      t.checkExpect(new DequeSerializer<String>(new Utf8Codec()).readInto(ring, in), 501L);
+      in.close();
+      t.checkExpect(ring.removeFromTail(), "");
+      t.checkExpect(ring.removeFromHead(), "item 0");
+
+      out = FileChannel.open(file, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE);
+      serializer.write(new Deque<String>(), out);
+      out.close();
+      in = FileChannel.open(file, StandardOpenOption.READ);
+      t.checkExpect(serializer.read(in).size(), 0);
+      in.close();
+
+      out = FileChannel.open(file, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE);
+      serializer.write(d, out);
+      out.write(ByteBuffer.wrap(new byte[] {'!'}), 40);
+      out.close();
+      String problem = "";
+      in = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+        serializer.read(in);
+      }
+      catch (IOException e) {
+        problem = e.getMessage();
+      }
+      in.close();
+      t.checkExpect(problem, "Chunk checksum does not match");
+      t.checkConstructorException(new IllegalArgumentException("Chunk size must be at least 28"),
+          "DequeSerializer", new Utf8Codec(), 8);
+
+      Files.delete(file);
+      Files.delete(dir);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // tests that takeAsync waits for an item without a thread, in order
+  void testAsyncDeque(Tester t) {
+    this.checkIDeque(t, new AsyncDeque<String>());
+    AsyncDeque<String> d = new AsyncDeque<String>();
+    d.addAtTail("abc");
+    t.checkExpect(d.takeAsync().join(), "abc");
+    CompletableFuture<String> first = d.takeAsync();
+    CompletableFuture<String> second = d.takeAsync();
+    CompletableFuture<String> third = d.takeAsync();
+    t.checkExpect(first.isDone(), false);
+    second.cancel(false);
+    d.addAtHead("bcd");
+    d.addAtTail("cde");
+    t.checkExpect(first.join(), "bcd");
+    t.checkExpect(third.join(), "cde");
+    t.checkExpect(d.size(), 0);
+    d.addAtTail("def");
+    t.checkExpect(d.size(), 1);
+    t.checkException(new IllegalArgumentException("Cannot add null to an async deque"),
+        d, "addAtTail", new Object[] {null});
+
+    AsyncDeque<Integer> shared = new AsyncDeque<Integer>();
+    ArrayList<CompletableFuture<Integer>> takes = new ArrayList<CompletableFuture<Integer>>();
+    for (int i = 0; i < 1000; i += 1) {
+      takes.add(shared.takeAsync());
+    }
+    Thread producer = new Thread(() -> {
+      for (int i = 0; i < 1000; i += 1) {
+        shared.addAtTail(i);
+      }
+    });
+    producer.start();
+    boolean inOrder = true;
+    for (int i = 0; i < 1000; i += 1) {
+      inOrder = inOrder && takes.get(i).join() == i;
+    }
+    t.checkExpect(inOrder, true);
+  }
+
+  // tests that an AsyncDeque's subscribers get only what they ask for
+  void testAsyncDequePublisher(Tester t) {
+    AsyncDeque<String> d = new AsyncDeque<String>();
+    d.addAtTail("abc");
+    d.addAtTail("bcd");
+    d.addAtTail("cde");
+    CollectingSubscriber<String> s = new CollectingSubscriber<String>();
+    d.subscribe(s);
+    t.checkExpect(s.items().size(), 0);
+    s.subscription.request(2);
+    t.checkExpect(s.items(), new ArrayList<String>(Arrays.asList("abc", "bcd")));
+    t.checkExpect(d.size(), 1);
+    s.subscription.request(3);
+    t.checkExpect(d.size(), 0);
+    d.addAtTail("def");
+    d.addAtTail("efg");
+    d.addAtTail("fgh");
+    t.checkExpect(s.items(), new ArrayList<String>(
+        Arrays.asList("abc", "bcd", "cde", "def", "efg")));
+    t.checkExpect(d.size(), 1);
+    s.subscription.request(1);
+    s.subscription.cancel();
+    d.addAtTail("ghi");
+    t.checkExpect(s.items().size(), 6);
+    t.checkExpect(d.removeFromHead(), "ghi");
+    s.subscription.request(0);
+    t.checkExpect(s.error.getMessage(), "Demand must be positive");
+
+    CollectingSubscriber<String> late = new CollectingSubscriber<String>();
+    d.subscribe(late);
+    late.subscription.request(1);
+    late.subscription.cancel();
+    d.addAtTail("hij");
+    t.checkExpect(late.items().size(), 0);
+    t.checkExpect(d.removeFromHead(), "hij");
+  }
+
+  // tests the predicate combinators, nested and flattened
+  void testPredCombinators(Tester t) {
+    this.initDeques();
+    IPred<String> fourNotBCD = new AndPred<String>(this.IsFour, new NotPred<String>(this.IsBCD));
+    IPred<String> startsB = new FieldEqualsPred<String, Character>(s -> s.charAt(0), 'b');
+    IPred<String> either = new OrPred<String>(startsB, fourNotBCD);
+    BatchPred<String> batch = new BatchPred<String>(either);
+    t.checkExpect(batch.kinds.length, 6);
+    t.checkExpect(batch.kinds[batch.root], BatchPred.OR);
+    t.checkExpect(either.apply("bcd"), true);
+    t.checkExpect(batch.apply("bcd"), true);
+    t.checkExpect(batch.apply("fish"), true);
+    t.checkExpect(batch.apply("cat"), false);
+    t.checkExpect(new BatchPred<String>(this.IsBCD).apply("bcd"), true);
+
+    String[] chunk = {"abc", "bcd", "fish", "dog", "bird", "horse"};
+    BitSet out = new BitSet();
+    out.set(3);
+    batch.applyAll(chunk, out);
+    BitSet expected = new BitSet();
+    expected.set(1);
+    expected.set(2);
+    expected.set(4);
+    t.checkExpect(out, expected);
+    t.checkExpect(batch.kinds[2], BatchPred.EQUALS);
+    long[] mask = batch.masks[batch.root];
+    batch.applyAll(chunk, 2, out);
+    expected.clear();
+    expected.set(1);
+    t.checkExpect(out, expected);
+    t.checkExpect(batch.masks[batch.root] == mask, true);
+
+    String[] wide = new String[300];
+    Arrays.fill(wide, "cat");
+    wide[299] = "bird";
+    batch.applyAll(wide, out);
+    expected.clear();
+    expected.set(299);
+    t.checkExpect(out, expected);
+    t.checkExpect(batch.all.length, 5);
+
+    t.checkExpect(this.deque3.find(new BatchPred<String>(fourNotBCD)), this.fish);
+    t.checkExpect(this.deque3.find(new BatchPred<String>(startsB)), this.deque3.header);
+    t.checkExpect(this.deque2.findData(batch), "bcd");
+
+    Random rand = new Random(22);
+    String[] words = {"abc", "bcd", "abcd", "bcde", "xyz", "four", "b"};
+    Deque<String> many = new Deque<String>();
+    for (int i = 0; i < 2000; i += 1) {
+      many.addAtTail(words[rand.nextInt(words.length)]);
+    }
+    ArrayList<String> nested = new ArrayList<String>();
+    for (String s : many.filter(either)) {
+      nested.add(s);
+    }
+    ArrayList<String> flat = new ArrayList<String>();
+    for (String s : many.filter(batch)) {
+      flat.add(s);
+    }
+    t.checkExpect(flat, nested);
+    t.checkExpect(many.count(either), (long) nested.size());
+  }
+
+  // tests that a pooling deque reuses its removed nodes
+  void testNodePool(Tester t) {
+    Deque<String> d = new Deque<String>(2);
+    d.addAtTail("abc");
+    d.addAtTail("bcd");
+    d.addAtTail("cde");
+    ANode<String> abc = d.header.next;
+    ANode<String> bcd = abc.next;
+    ANode<String> cde = bcd.next;
+    d.removeFromHead();
+    d.removeNode(bcd);
+    d.removeFromTail();
+    t.checkExpect(d.size(), 0);
+    t.checkExpect(d.pool.free.size(), 2);
+    t.checkExpect(abc.value(), null);
+    d.addAtHead("fish");
+    d.addAtHead("dog");
+    d.addAtHead("cat");
+    t.checkExpect(d.header.prev == bcd, true);
+    t.checkExpect(d.header.next.next == abc, true);
+    t.checkExpect(d.header.next == cde, false);
+    t.checkExpect(d.findData(this.IsFour), "fish");
+    t.checkExpect(d.size(), 3);
+    t.checkExpect(d.pool.free.size(), 0);
+    Deque<String> unbounded = new Deque<String>(Integer.MAX_VALUE);
+    unbounded.addAtTail("abc");
+    unbounded.removeFromHead();
+    t.checkExpect(unbounded.pool.free.size(), 1);
+    t.checkConstructorException(new IllegalArgumentException("Pool limit cannot be negative"),
+        "NodePool", -1);
+  }
+
+  // produces how many bytes this thread allocates while cycling the given
+  // deque through the given number of adds and removes
+  long allocatedByCycles(Deque<String> d, int cycles) {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long before = bean.getThreadAllocatedBytes(id);
+    for (int i = 0; i < cycles; i += 1) {
+      d.addAtTail("x");
+      d.addAtHead("y");
+      d.removeFromHead();
+      d.removeFromTail();
+    }
+    return bean.getThreadAllocatedBytes(id) - before;
+  }
+
+  // tests that a steady stream of adds and removes allocates nothing once
+  // the pool is warm, measured with the thread allocation counter
+  void testNodePoolAllocation(Tester t) {
+    Deque<String> pooled = new Deque<String>(16);
+    Deque<String> plain = new Deque<String>();
+    this.allocatedByCycles(pooled, 100000);
+    this.allocatedByCycles(plain, 100000);
+    t.checkExpect(this.allocatedByCycles(pooled, 1000000) < 100000, true);
+    t.checkExpect(this.allocatedByCycles(plain, 1000000) > 10000000, true);
+  }
+
+  // tests that large deques need no recursion and keep an accurate size
+  void testStress(Tester t) {
+    Deque<String> big = new Deque<String>();
+    int n = 10000000;
+    for (int i = 0; i < n; i += 1) {
+      big.addAtTail("x");
+    }
+    big.addAtHead("head");
+    big.addAtTail("tail");
+    t.checkExpect(big.size(), n + 2);
+    t.checkExpect(big.find(this.IsFour), big.header.next);
+    t.checkExpect(big.find(this.IsBCD), big.header);
+    t.checkExpect(big.removeFromTail(), "tail");
+    t.checkExpect(big.removeFromHead(), "head");
+    for (int i = 0; i < n; i += 1) {
+      big.removeFromHead();
+    }
+    t.checkExpect(big.size(), 0);
+    t.checkExpect(big.header.next, big.header);
+  }
 }
@@ -1,3 +1,7 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
 import tester.*;
 
@@ -20,6 +24,18 @@ public class PermutationCode {
   // A random number generator
   Random rand = new Random();
 
+  // how many chars or bytes the streaming methods translate at a time
+  static final int BUFFER_SIZE = 1 << 16;
+
+  // how many bytes of a file the file methods map at a time
+  static final int WINDOW_SIZE = 1 << 26;
+
+  // lookup tables: forward[i] is the code letter for the i-th letter of the
+  // alphabet, and inverse[i] the alphabet letter for the i-th code letter;
+  // both are null until the code is a full permutation of the alphabet
+  char[] forward;
+  char[] inverse;
+
   // Create a new instance of the encoder/decoder with a new permutation code 
   PermutationCode() {
     this.code = this.initEncoder();
@@ -28,6 +44,7 @@ public class PermutationCode {
   // Create a new instance of the encoder/decoder with the given code 
   PermutationCode(ArrayList<Character> code) {
     this.code = code;
+    this.buildTables();
   }
   
   /*TEMPLATE:
@@ -35,11 +52,28 @@ public class PermutationCode {
    *  ... this.alphabet ...      -- ArrayList<Character>
    *  ... this.code ...          -- ArrayList<Character>
    *  ... this.rand ...          -- ArrayList<Character>
+   *  ... this.forward ...       -- char[]
+   *  ... this.inverse ...       -- char[]
    *  
    * Methods:
    *  ... this.initEncoder() ...       -- ArrayList<Character>
    *  ... this.encode(String) ...      -- String
    *  ... this.decode(String) ...      -- String
+   *  ... this.encode(Reader, Writer) ...               -- void
+   *  ... this.decode(Reader, Writer) ...               -- void
+   *  ... this.encode(InputStream, OutputStream) ...    -- void
+   *  ... this.decode(InputStream, OutputStream) ...    -- void
+   *  ... this.encodeFile(Path) ...                     -- void
+   *  ... this.decodeFile(Path) ...                     -- void
+   *  ... this.encodeFile(Path, Path) ...               -- void
+   *  ... this.decodeFile(Path, Path) ...               -- void
+   *  ... this.buildTables() ...       -- void
+   *  ... this.table(boolean) ...      -- char[]
+   *  ... this.byteTable(boolean) ...  -- byte[]
+   *  ... PermutationCode.translate(char[], int, int, char[]) ...   -- void
+   *  ... PermutationCode.translate(Reader, Writer, char[]) ...     -- void
+   *  ... PermutationCode.translate(InputStream, OutputStream, byte[]) ...   -- void
+   *  ... PermutationCode.translate(Path, Path, byte[], int) ...   -- void
    *  
    * 
    */
@@ -58,45 +92,200 @@ public class PermutationCode {
       this.code.add(alphabet2.get(n));
       alphabet2.remove(n);
     }
+    this.buildTables();
     return this.code;
   }
 
   // produce an encoded String from the given String
   // method template: same as class template
   String encode(String source) {
-    ArrayList<String> alphabet3 = 
-        new ArrayList<String>(Arrays.asList(
-            "a", "b", "c", "d", "e", "f", "g", "h", "i", "j", 
-            "k", "l", "m", "n", "o", "p", "q", "r", "s", 
-            "t", "u", "v", "w", "x", "y", "z"));
-    if (source.length() == 0) {
-      return "";
+    char[] chars = source.toCharArray();
+    translate(chars, 0, chars.length, this.table(true));
+    return new String(chars);
+  }
+
+  // produce a decoded String from the given String
+  // method template: same as class template
+  String decode(String code) {
+    char[] chars = code.toCharArray();
+    translate(chars, 0, chars.length, this.table(false));
+    return new String(chars);
+  }
+
+  // EFFECT: writes the encoding of everything the reader produces to the
+  // writer, a buffer at a time, and flushes it
+  // method template: same as class template
+  void encode(Reader in, Writer out) throws IOException {
+    translate(in, out, this.table(true));
+  }
+
+  // EFFECT: writes the decoding of everything the reader produces to the
+  // writer, a buffer at a time, and flushes it
+  // method template: same as class template
+  void decode(Reader in, Writer out) throws IOException {
+    translate(in, out, this.table(false));
+  }
+
+  // EFFECT: writes the encoding of every byte of the input stream, read as
+  // ASCII, to the output stream, a buffer at a time, and flushes it
+  // method template: same as class template
+  void encode(InputStream in, OutputStream out) throws IOException {
+    translate(in, out, this.byteTable(true));
+  }
+
+  // EFFECT: writes the decoding of every byte of the input stream, read as
+  // ASCII, to the output stream, a buffer at a time, and flushes it
+  // method template: same as class template
+  void decode(InputStream in, OutputStream out) throws IOException {
+    translate(in, out, this.byteTable(false));
+  }
+
+  // EFFECT: encodes the given ASCII file in place
+  // method template: same as class template
+  void encodeFile(Path file) throws IOException {
+    translate(file, file, this.byteTable(true), WINDOW_SIZE);
+  }
+
+  // EFFECT: decodes the given ASCII file in place
+  // method template: same as class template
+  void decodeFile(Path file) throws IOException {
+    translate(file, file, this.byteTable(false), WINDOW_SIZE);
+  }
+
+  // EFFECT: writes the encoding of the given ASCII file to the output file,
+  // replacing anything that was there
+  // method template: same as class template
+  void encodeFile(Path source, Path target) throws IOException {
+    translate(source, target, this.byteTable(true), WINDOW_SIZE);
+  }
+
+  // EFFECT: writes the decoding of the given ASCII file to the output file,
+  // replacing anything that was there
+  // method template: same as class template
+  void decodeFile(Path source, Path target) throws IOException {
+    translate(source, target, this.byteTable(false), WINDOW_SIZE);
+  }
+
+  // EFFECT: builds the forward and inverse tables from the code, or clears
+  // them if the code is not a permutation of the alphabet
+  // method template: same as class template
+  void buildTables() {
+    this.forward = null;
+    this.inverse = null;
+    if (this.code.size() != this.alphabet.size()) {
+      return;
     }
-    else {
-      String s = source.substring(0, 1);
-      return s.replace(s, this.code.get(alphabet3.indexOf(s)).toString())
-          + this.encode(source.substring(1, source.length()));
+    char[] there = new char[26];
+    char[] back = new char[26];
+    for (int i = 0; i < 26; i += 1) {
+      char c = this.code.get(i);
+      if (c < 'a' || c > 'z' || back[c - 'a'] != 0) {
+        return;
+      }
+      there[i] = c;
+      back[c - 'a'] = (char) ('a' + i);
     }
+    this.forward = there;
+    this.inverse = back;
+  }
 
+  // the table for encoding, or for decoding, building it if the code has
+  // changed into a full permutation since it was set
+  // method template: same as class template
+  char[] table(boolean encoding) {
+    if (this.forward == null) {
+      this.buildTables();
+      if (this.forward == null) {
+        throw new IllegalStateException("The code is not a permutation of a to z");
+      }
+    }
+    if (encoding) {
+      return this.forward;
+    }
+    return this.inverse;
   }
 
-  // produce a decoded String from the given String
+  // a table from every byte to its encoding, or to its decoding; capital
+  // letters map to the capital of their lowercase letter's entry, and bytes
+  // that are not letters map to themselves
   // method template: same as class template
-  String decode(String code) {
-    ArrayList<String> alphabet4 = 
-        new ArrayList<String>(Arrays.asList(
-            "a", "b", "c", "d", "e", "f", "g", "h", "i", "j", 
-            "k", "l", "m", "n", "o", "p", "q", "r", "s", 
-            "t", "u", "v", "w", "x", "y", "z")); 
-    if (code.length() == 0) {
-      return "";
+  byte[] byteTable(boolean encoding) {
+    char[] letters = this.table(encoding);
+    byte[] bytes = new byte[256];
+    for (int i = 0; i < 256; i += 1) {
+      bytes[i] = (byte) i;
+    }
+    for (int i = 0; i < 26; i += 1) {
+      bytes['a' + i] = (byte) letters[i];
+      bytes['A' + i] = (byte) (letters[i] - 'a' + 'A');
     }
-    else {
-      String s = code.substring(0, 1);
-      return s.replace(s, alphabet4.get(this.code.indexOf(s.charAt(0))))
-          + this.decode(code.substring(1, code.length()));
+    return bytes;
+  }
+
+  // EFFECT: replaces each letter in chars[from..to) with its entry in the
+  // given table, keeping capitals as capitals; anything that is not a letter
+  // from a to z or A to Z stays as it is
+  static void translate(char[] chars, int from, int to, char[] table) {
+    for (int i = from; i < to; i += 1) {
+      char c = chars[i];
+      if (c >= 'a' && c <= 'z') {
+        chars[i] = table[c - 'a'];
+      }
+      else if (c >= 'A' && c <= 'Z') {
+        chars[i] = (char) (table[c - 'A'] - 'a' + 'A');
+      }
     }
   }
+
+  // EFFECT: copies the reader to the writer through the given table, one
+  // fixed buffer at a time, and flushes the writer
+  static void translate(Reader in, Writer out, char[] table) throws IOException {
+    char[] buffer = new char[BUFFER_SIZE];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      translate(buffer, 0, n, table);
+      out.write(buffer, 0, n);
+    }
+    out.flush();
+  }
+
+  // EFFECT: rewrites the source file through the given byte table into the
+  // target file, which may be the same file, mapping both a window of the
+  // given size at a time and forcing each window to disk once it is done
+  static void translate(Path source, Path target, byte[] table, int window)
+      throws IOException {
+    boolean inPlace = Files.exists(target) && Files.isSameFile(source, target);
+    try (FileChannel in = FileChannel.open(source, inPlace
+            ? new OpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+            : new OpenOption[] {StandardOpenOption.READ});
+        FileChannel out = inPlace ? null : FileChannel.open(target, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      long size = in.size();
+      for (long at = 0; at < size; at += window) {
+        int length = (int) Math.min(window, size - at);
+        MappedByteBuffer from = in.map(inPlace ? FileChannel.MapMode.READ_WRITE
+            : FileChannel.MapMode.READ_ONLY, at, length);
+        MappedByteBuffer to = inPlace ? from : out.map(FileChannel.MapMode.READ_WRITE, at, length);
+        for (int i = 0; i < length; i += 1) {
+          to.put(i, table[from.get(i) & 0xFF]);
+        }
+        to.force();
+      }
+    }
+  }
+
+  // EFFECT: copies the input stream to the output stream through the given
+  // byte table, one fixed buffer at a time, and flushes the output stream
+  static void translate(InputStream in, OutputStream out, byte[] table) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      for (int i = 0; i < n; i += 1) {
+        buffer[i] = table[buffer[i] & 0xFF];
+      }
+      out.write(buffer, 0, n);
+    }
+    out.flush();
+  }
 }
 
 class ExamplesPermutation {
@@ -128,4 +317,197 @@ class ExamplesPermutation {
     t.checkExpect(new PermutationCode(new ArrayList<Character>(26)).code.size(), 0);
     t.checkExpect(new PermutationCode(new ArrayList<Character>(26)).initEncoder().size(), 26);
   }
+
+  // tests the lookup tables, and that bad input is refused
+  void testTables(Tester t) {
+    t.checkExpect(this.p1.forward[0], 'b');
+    t.checkExpect(this.p1.inverse[0], 'z');
+    PermutationCode empty = new PermutationCode(new ArrayList<Character>(26));
+    t.checkExpect(empty.forward, null);
+    t.checkException(new IllegalStateException("The code is not a permutation of a to z"),
+        empty, "encode", "cat");
+    empty.initEncoder();
+    t.checkExpect(empty.decode(empty.encode("house")), "house");
+    t.checkExpect(this.p1.encode("Cat, house!"), "Dbu, ipvtf!");
+    t.checkExpect(this.p1.decode("Dbu, ipvtf!"), "Cat, house!");
+    t.checkExpect(this.p1.encode("ZOO @[`{"), "APP @[`{");
+    t.checkExpect(this.p1.decode("APP @[`{"), "ZOO @[`{");
+    PermutationCode random = new PermutationCode();
+    t.checkExpect(random.decode(random.encode("zebra")), "zebra");
+  }
+
+  // tests that messages of several megabytes are encoded and decoded
+  void testLargeMessage(Tester t) {
+    char[] message = new char[4 << 20];
+    for (int i = 0; i < message.length; i += 1) {
+      message[i] = (char) ('a' + i % 26);
+    }
+    String source = new String(message);
+    String encoded = this.p1.encode(source);
+    t.checkExpect(encoded.length(), source.length());
+    t.checkExpect(encoded.substring(0, 27), "bcdefghijklmnopqrstuvwxyzab");
+    t.checkExpect(this.p1.decode(encoded).equals(source), true);
+  }
+
+  // tests encoding and decoding files through memory maps
+  void testFiles(Tester t) {
+    try {
+      Path dir = Files.createTempDirectory("permutation-test");
+      Path file = dir.resolve("plain.txt");
+      Path other = dir.resolve("coded.txt");
+      Files.write(file, "the cat sat\non the mat.".getBytes("US-ASCII"));
+      this.p1.encodeFile(file);
+      t.checkExpect(new String(Files.readAllBytes(file), "US-ASCII"),
+          "uif dbu tbu\npo uif nbu.");
+      Files.write(other, "something longer that will be replaced".getBytes("US-ASCII"));
+      this.p1.decodeFile(file, other);
+      t.checkExpect(new String(Files.readAllBytes(other), "US-ASCII"),
+          "the cat sat\non the mat.");
+      t.checkExpect(new String(Files.readAllBytes(file), "US-ASCII"),
+          "uif dbu tbu\npo uif nbu.");
+      PermutationCode.translate(other, other, this.p1.byteTable(true), 5);
+      t.checkExpect(new String(Files.readAllBytes(other), "US-ASCII"),
+          "uif dbu tbu\npo uif nbu.");
+      PermutationCode.translate(other, file, this.p1.byteTable(false), 7);
+      t.checkExpect(new String(Files.readAllBytes(file), "US-ASCII"),
+          "the cat sat\non the mat.");
+      Files.write(file, new byte[0]);
+      this.p1.encodeFile(file, other);
+      t.checkExpect(Files.size(other), 0L);
+      Files.delete(file);
+      Files.delete(other);
+      Files.delete(dir);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // tests encoding and decoding through readers, writers and byte streams
+  void testStreams(Tester t) {
+    try {
+      StringWriter encoded = new StringWriter();
+      this.p1.encode(new StringReader("the cat sat\non the mat."), encoded);
+      t.checkExpect(encoded.toString(), "uif dbu tbu\npo uif nbu.");
+      StringWriter decoded = new StringWriter();
+      this.p1.decode(new StringReader(encoded.toString()), decoded);
+      t.checkExpect(decoded.toString(), "the cat sat\non the mat.");
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      this.p1.encode(new ByteArrayInputStream("zoo 42\n".getBytes("US-ASCII")), bytes);
+      t.checkExpect(bytes.toString("US-ASCII"), "app 42\n");
+      bytes.reset();
+      this.p1.decode(new ByteArrayInputStream("App, ZOO @[`{".getBytes("US-ASCII")), bytes);
+      t.checkExpect(bytes.toString("US-ASCII"), "Zoo, YNN @[`{");
+
+      TextStream text = new TextStream(3 * PermutationCode.BUFFER_SIZE + 7);
+      ByteArrayOutputStream plain = new ByteArrayOutputStream();
+      ByteArrayOutputStream round = new ByteArrayOutputStream();
+      ByteArrayOutputStream through = new ByteArrayOutputStream();
+      PermutationCode random = new PermutationCode();
+      random.encode(text, through);
+      random.decode(new ByteArrayInputStream(through.toByteArray()), round);
+      new TextStream(3 * PermutationCode.BUFFER_SIZE + 7).transferTo(plain);
+      t.checkExpect(round.size(), 3 * PermutationCode.BUFFER_SIZE + 7);
+      t.checkExpect(Arrays.equals(round.toByteArray(), plain.toByteArray()), true);
+      t.checkExpect(through.toString("US-ASCII").substring(0, 11), "2024-01-01 ");
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
+
+// To measure how fast a PermutationCode streams text
+class PermutationBenchmarks {
+
+  // streams 256 MB of text through each of the streaming methods, holding
+  // none of it in memory, then encodes a file of that size streamed and
+  // mapped, and prints the throughput of each
+  public static void main(String[] args) throws IOException {
+    long bytes = args.length > 0 ? Long.parseLong(args[0]) : 256L << 20;
+    PermutationCode code = new PermutationCode();
+    for (int round = 0; round < 3; round += 1) {
+      long start = System.nanoTime();
+      code.encode(new InputStreamReader(new TextStream(bytes), "US-ASCII"), Writer.nullWriter());
+      report("encode(Reader, Writer)", bytes, start);
+      start = System.nanoTime();
+      code.decode(new InputStreamReader(new TextStream(bytes), "US-ASCII"), Writer.nullWriter());
+      report("decode(Reader, Writer)", bytes, start);
+      start = System.nanoTime();
+      code.encode(new TextStream(bytes), OutputStream.nullOutputStream());
+      report("encode(InputStream, OutputStream)", bytes, start);
+      start = System.nanoTime();
+      code.decode(new TextStream(bytes), OutputStream.nullOutputStream());
+      report("decode(InputStream, OutputStream)", bytes, start);
+    }
+    Path dir = Files.createTempDirectory("permutation-bench");
+    Path plain = dir.resolve("plain.txt");
+    Path coded = dir.resolve("coded.txt");
+    try (OutputStream out = Files.newOutputStream(plain)) {
+      new TextStream(bytes).transferTo(out);
+    }
+    for (int round = 0; round < 3; round += 1) {
+      long start = System.nanoTime();
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(plain));
+          OutputStream out = new BufferedOutputStream(Files.newOutputStream(coded))) {
+        code.encode(in, out);
+      }
+      report("file, streamed", bytes, start);
+      start = System.nanoTime();
+      code.encodeFile(plain, coded);
+      report("file, mapped to a second file", bytes, start);
+      start = System.nanoTime();
+      code.encodeFile(plain);
+      report("file, mapped in place", bytes, start);
+      code.decodeFile(plain);
+    }
+    Files.delete(plain);
+    Files.delete(coded);
+    Files.delete(dir);
+  }
+
+  // prints the throughput of the given number of bytes since the given time
+  static void report(String label, long bytes, long start) {
+    long nanos = System.nanoTime() - start;
+    System.out.println(String.format("%-34s %8.1f MB/s", label,
+        bytes * 1000.0 / Math.max(1, nanos)));
+  }
+}
+
+// To represent an input stream of the given number of bytes of log-like
+// text, made up as it is read
+class TextStream extends InputStream {
+  static final byte[] LINE =
+      "2024-01-01 info the quick brown fox jumps over the lazy dog\n".getBytes();
+  long remaining;
+  int position;
+
+  // Initial constructor
+  TextStream(long bytes) {
+    this.remaining = bytes;
+    this.position = 0;
+  }
+
+  // the next byte, or -1 at the end
+  public int read() {
+    byte[] one = new byte[1];
+    return this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+  }
+
+  // fills up to len bytes of the buffer from off, and produces how many
+  public int read(byte[] buffer, int off, int len) {
+    if (this.remaining == 0) {
+      return -1;
+    }
+    int n = (int) Math.min(len, this.remaining);
+    for (int done = 0; done < n; ) {
+      int piece = Math.min(n - done, LINE.length - this.position);
+      System.arraycopy(LINE, this.position, buffer, off + done, piece);
+      done += piece;
+      this.position = (this.position + piece) % LINE.length;
+    }
+    this.remaining -= n;
+    return n;
+  }
 }